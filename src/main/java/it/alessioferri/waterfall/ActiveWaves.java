@@ -0,0 +1,107 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.AbstractCollection;
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Live read only view of the running waves of a scheduler, kept up to date as the cursors of the waves drain. Checking
+ * for emptiness and the size cost nothing, iterating costs as much as the running waves, completed waves are never
+ * visited.
+ *
+ * @author Alessio
+ * @param <W> type of the waves
+ */
+public final class ActiveWaves<W extends TasksWave<?, ?, ?>> extends AbstractCollection<W> {
+
+    private final List<W> waves;
+    private final BitSet running;
+    private int size;
+    private int modCount;
+
+    ActiveWaves(List<W> waves) {
+        this.waves = waves;
+        this.running = new BitSet();
+        this.size = 0;
+        this.modCount = 0;
+    }
+
+    /**
+     * Record whether the wave at the position is running
+     *
+     * @param position position of the wave in the scheduler
+     */
+    void refresh(int position) {
+        var isRunning = this.waves.get( position ).hasUnresolvedTasks();
+
+        if ( isRunning != this.running.get( position ) ) {
+            this.running.set( position, isRunning );
+            this.size += isRunning ? 1 : -1;
+            this.modCount++;
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public Iterator<W> iterator() {
+        return new Iterator<>() {
+
+            private final int expected = ActiveWaves.this.modCount;
+            private int next = ActiveWaves.this.running.nextSetBit( 0 );
+
+            @Override
+            public boolean hasNext() {
+                return this.next >= 0;
+            }
+
+            @Override
+            public W next() {
+                if ( ActiveWaves.this.modCount != this.expected ) {
+                    throw new ConcurrentModificationException();
+                }
+
+                if ( this.next < 0 ) {
+                    throw new NoSuchElementException();
+                }
+
+                var wave = ActiveWaves.this.waves.get( this.next );
+                this.next = ActiveWaves.this.running.nextSetBit( this.next + 1 );
+                return wave;
+            }
+
+        };
+    }
+
+}
@@ -0,0 +1,266 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Wave seen by a branch of a frontier evaluated on its own thread. Lookups read the snapshots added by the branch
+ * first and then the wave, that is not written while the branches run. The snapshots, the new cursors, the new waves
+ * and the scratchpad of the branch are kept aside and handed to the wave by merge, on the thread that owns it.
+ *
+ * @author Alessio
+ * @param <E>
+ * @param <S>
+ * @param <L>
+ */
+final class BranchWave<E extends Enum<E>, S extends FlowStage<E>, L extends Link> implements TasksWave<E, S, L> {
+
+    private final TasksWave<E, S, L> wave;
+    private final List<TaskSnapshot> added;
+    private final Map<Long, TaskSnapshot> latestByStage;
+    private final Map<Long, TaskSnapshot> latestByTask;
+    private final Set<Long> relatedStages;
+    private final List<Long> cursors;
+    private final List<Long> cursorsView;
+    private final Map<String, Object> scratchpad;
+    private final Map<String, Object> scratchpadAtStart;
+    private final List<Supplier<TasksWave<E, S, L>>> spawned;
+    private final BitSet candidates;
+
+    BranchWave(TasksWave<E, S, L> wave) {
+        this.wave = wave;
+        this.added = new ArrayList<>();
+        this.latestByStage = new HashMap<>();
+        this.latestByTask = new HashMap<>();
+        this.relatedStages = new HashSet<>();
+        this.cursors = new ArrayList<>();
+        this.cursorsView = new Cursors();
+        this.scratchpad = new WaveSlots();
+        this.scratchpad.putAll( wave.scratchpad() );
+        this.scratchpadAtStart = new HashMap<>( this.scratchpad );
+        this.spawned = new ArrayList<>();
+        this.candidates = new BitSet();
+    }
+
+    /**
+     * Candidates of the branch, the ones left after the branch is evaluated belong to other branches as well
+     *
+     * @return sequence numbers of the candidate stages
+     */
+    BitSet candidates() {
+        return this.candidates;
+    }
+
+    /**
+     * Keep a new wave started by the branch, it is created by merge
+     *
+     * @param wave supplier of the new wave
+     */
+    void spawn(Supplier<TasksWave<E, S, L>> wave) {
+        this.spawned.add( wave );
+    }
+
+    /**
+     * Add the snapshots of the branch to the wave, store the scratchpad values the branch changed and pass on the new
+     * waves, in the order the branch made them
+     *
+     * @param spawn receiver of the new waves
+     * @return the cursors added by the branch
+     */
+    List<Long> merge(Consumer<Supplier<TasksWave<E, S, L>>> spawn) {
+        for ( var snapshot : this.added ) {
+            this.wave.addSnapshot( snapshot );
+        }
+
+        var target = this.wave.scratchpad();
+
+        for ( var entry : this.scratchpad.entrySet() ) {
+            var name = entry.getKey();
+            var value = entry.getValue();
+
+            if ( !this.scratchpadAtStart.containsKey( name ) || this.scratchpadAtStart.get( name ) != value ) {
+                target.put( name, value );
+            }
+        }
+
+        for ( var name : this.scratchpadAtStart.keySet() ) {
+            if ( !this.scratchpad.containsKey( name ) ) {
+                target.remove( name );
+            }
+        }
+
+        for ( var wave : this.spawned ) {
+            spawn.accept( wave );
+        }
+
+        return this.cursors;
+    }
+
+    @Override
+    public long parentWaveId() {
+        return this.wave.parentWaveId();
+    }
+
+    @Override
+    public long waveId() {
+        return this.wave.waveId();
+    }
+
+    @Override
+    public LocalDate startedAt() {
+        return this.wave.startedAt();
+    }
+
+    @Override
+    public Map<String, Object> resources() {
+        return this.wave.resources();
+    }
+
+    /**
+     * Scratchpad of the branch, a copy of the one of the wave taken when the branch is created
+     *
+     * @return
+     */
+    @Override
+    public Map<String, Object> scratchpad() {
+        return this.scratchpad;
+    }
+
+    /**
+     * Cursors of the wave as they were before the branches ran, followed by the cursors added by the branch. Only
+     * additions are allowed.
+     *
+     * @return
+     */
+    @Override
+    public List<Long> cursors() {
+        return this.cursorsView;
+    }
+
+    /**
+     * Copy of the history of the wave followed by the snapshots of the branch
+     *
+     * @return
+     */
+    @Override
+    public Collection<TaskSnapshot> history() {
+        var history = new ArrayList<TaskSnapshot>( this.wave.history() );
+        history.addAll( this.added );
+        return history;
+    }
+
+    @Override
+    public List<TaskSnapshot> historyFor(long taskId) {
+        var history = new ArrayList<TaskSnapshot>( this.wave.historyFor( taskId ) );
+
+        for ( var snapshot : this.added ) {
+            if ( snapshot.taskId() == taskId ) {
+                history.add( snapshot );
+            }
+        }
+
+        return history;
+    }
+
+    @Override
+    public List<TaskSnapshot> inheritedHistory() {
+        return this.wave.inheritedHistory();
+    }
+
+    @Override
+    public TaskSnapshot inheritedSnapshotOfStage(long stageId) {
+        return this.wave.inheritedSnapshotOfStage( stageId );
+    }
+
+    @Override
+    public TaskSnapshot snapshotOfStage(long stageId) {
+        var latest = this.latestByStage.get( stageId );
+        return latest != null ? latest : this.wave.snapshotOfStage( stageId );
+    }
+
+    @Override
+    public TaskSnapshot snapshotOfTask(long taskId) {
+        var latest = this.latestByTask.get( taskId );
+        return latest != null ? latest : this.wave.snapshotOfTask( taskId );
+    }
+
+    @Override
+    public boolean hasRelatedTask(long stageId) {
+        return this.relatedStages.contains( stageId ) || this.wave.hasRelatedTask( stageId );
+    }
+
+    @Override
+    public void addSnapshot(TaskSnapshot snapshot) {
+        this.added.add( snapshot );
+        this.latestByStage.put( snapshot.stageId(), snapshot );
+        this.latestByTask.put( snapshot.taskId(), snapshot );
+
+        if ( snapshot.status() != TaskStatus.SKIPPED ) {
+            this.relatedStages.add( snapshot.stageId() );
+        }
+    }
+
+    @Override
+    public boolean hasUnresolvedTasks() {
+        return !this.cursors.isEmpty() || this.wave.hasUnresolvedTasks();
+    }
+
+    @Override
+    public TasksWave<E, S, L> withWaveId(long waveId) {
+        return this.wave.withWaveId( waveId );
+    }
+
+    /**
+     * Cursors of the wave followed by the cursors of the branch, additions go to the branch
+     */
+    private final class Cursors extends AbstractList<Long> {
+
+        @Override
+        public Long get(int index) {
+            var base = wave.cursors();
+            return index < base.size() ? base.get( index ) : cursors.get( index - base.size() );
+        }
+
+        @Override
+        public int size() {
+            return wave.cursors().size() + cursors.size();
+        }
+
+        @Override
+        public boolean add(Long cursor) {
+            return cursors.add( cursor );
+        }
+
+    }
+
+}
@@ -0,0 +1,292 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FlowPlan decorator that keeps the stages and the adjacency of the stages recently used, for plans that load them
+ * from a storage. The cache is bounded by weight: a stage weights 1, a list of links weights 1 plus its size. The
+ * least recently used entries are evicted first.
+ *
+ * @author Alessio
+ * @param <E> Enumeration of block ids
+ * @param <S> FlowStage type
+ * @param <L> Link type
+ */
+public final class CachingFlowPlan<E extends Enum<E>, S extends FlowStage<E>, L extends Link>
+        implements FlowPlan<E, S, L> {
+
+    private final FlowPlan<E, S, L> source;
+    private final long capacity;
+    private final Map<Entry, Object> entries;
+    private long weight;
+    private long hits;
+    private long misses;
+
+    /**
+     * Wrap a plan
+     *
+     * @param source   plan to be cached
+     * @param capacity maximum weight of the entries kept
+     */
+    public CachingFlowPlan(FlowPlan<E, S, L> source, long capacity) {
+        if ( capacity <= 0 ) {
+            throw new IllegalArgumentException( "capacity must be positive" );
+        }
+
+        this.source = source;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>( 16, 0.75f, true );
+    }
+
+    /**
+     * Load in a single bulk the stages and their adjacency, usually the cursors of a wave before it is updated. The
+     * scheduler does not call it: SchedulerDefault compiles the plan once at kickoff and never reads it again, so the
+     * cache serves the callers that keep reading the plan, like the callbacks looking up the stages of a wave.
+     *
+     * @param stageIds ids of the stages
+     */
+    public void prefetch(Collection<Long> stageIds) {
+        var missingIds = new ArrayList<Long>();
+
+        synchronized ( this ) {
+            for ( var stageId : stageIds ) {
+                if ( !this.entries.containsKey( new Entry( Slot.STAGE, stageId ) ) ) {
+                    missingIds.add( stageId );
+                }
+            }
+        }
+
+        var fetched = missingIds.isEmpty() ? Map.<Long, S>of() : this.source.stagesById( missingIds );
+        var stages = new ArrayList<S>( stageIds.size() );
+
+        for ( var stage : fetched.values() ) {
+            this.store( new Entry( Slot.STAGE, stage.stageId() ), stage, 1 );
+        }
+
+        for ( var stageId : stageIds ) {
+            var stage = fetched.get( stageId );
+            stages.add( stage != null ? stage : this.stageById( stageId ) );
+        }
+
+        this.prefetchLinks( Slot.OUTGOINGS, stages );
+        this.prefetchLinks( Slot.INCOMINGS, stages );
+    }
+
+    private void prefetchLinks(Slot slot, List<S> stages) {
+        var missing = new ArrayList<S>();
+
+        synchronized ( this ) {
+            for ( var stage : stages ) {
+                if ( !this.entries.containsKey( new Entry( slot, stage.stageId() ) ) ) {
+                    missing.add( stage );
+                }
+            }
+        }
+
+        if ( missing.isEmpty() ) {
+            return;
+        }
+
+        var fetched = slot == Slot.OUTGOINGS ? this.source.outgoingsOf( missing ) : this.source.incomingsOf( missing );
+
+        for ( var e : fetched.entrySet() ) {
+            var links = List.copyOf( e.getValue() );
+            this.store( new Entry( slot, e.getKey() ), links, 1 + links.size() );
+        }
+    }
+
+    /**
+     * Number of lookups served from the cache
+     *
+     * @return
+     */
+    public synchronized long hits() {
+        return this.hits;
+    }
+
+    /**
+     * Number of lookups forwarded to the source plan
+     *
+     * @return
+     */
+    public synchronized long misses() {
+        return this.misses;
+    }
+
+    /**
+     * Weight of the entries kept
+     *
+     * @return
+     */
+    public synchronized long weight() {
+        return this.weight;
+    }
+
+    /**
+     * Drop every cached entry, to be called when the source plan changes
+     */
+    public synchronized void invalidate() {
+        this.entries.clear();
+        this.weight = 0;
+    }
+
+    private synchronized Object lookup(Entry entry) {
+        var value = this.entries.get( entry );
+
+        if ( value != null ) {
+            this.hits++;
+        } else {
+            this.misses++;
+        }
+
+        return value;
+    }
+
+    private synchronized void store(Entry entry, Object value, long entryWeight) {
+        var previous = this.entries.put( entry, value );
+
+        if ( previous != null ) {
+            this.weight -= weightOf( previous );
+        }
+
+        this.weight += entryWeight;
+
+        var eldest = this.entries.entrySet().iterator();
+
+        while ( this.weight > this.capacity && eldest.hasNext() ) {
+            var e = eldest.next();
+
+            if ( e.getKey().equals( entry ) ) {
+                continue;
+            }
+
+            this.weight -= weightOf( e.getValue() );
+            eldest.remove();
+        }
+    }
+
+    private static long weightOf(Object value) {
+        return value instanceof Collection<?> links ? 1 + links.size() : 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Collection<L> links(Slot slot, S stage) {
+        var entry = new Entry( slot, stage.stageId() );
+        var cached = ( Collection<L> ) this.lookup( entry );
+
+        if ( cached != null ) {
+            return cached;
+        }
+
+        var fetched = slot == Slot.OUTGOINGS ? this.source.outgoings( stage ) : this.source.incomings( stage );
+        var links = List.copyOf( fetched );
+        this.store( entry, links, 1 + links.size() );
+        return links;
+    }
+
+    @Override
+    public String title() {
+        return this.source.title();
+    }
+
+    @Override
+    public Collection<S> stages() {
+        return this.source.stages();
+    }
+
+    @Override
+    public Collection<L> links() {
+        return this.source.links();
+    }
+
+    @Override
+    public Collection<S> startSet() {
+        return this.source.startSet();
+    }
+
+    @Override
+    public Collection<L> outgoings(S stage) {
+        return this.links( Slot.OUTGOINGS, stage );
+    }
+
+    @Override
+    public Collection<L> incomings(S stage) {
+        return this.links( Slot.INCOMINGS, stage );
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public S stageById(long stageId) {
+        var entry = new Entry( Slot.STAGE, stageId );
+        var cached = ( S ) this.lookup( entry );
+
+        if ( cached != null ) {
+            return cached;
+        }
+
+        var stage = this.source.stageById( stageId );
+        this.store( entry, stage, 1 );
+        return stage;
+    }
+
+    @Override
+    public Map<Long, S> stagesById(Collection<Long> stageIds) {
+        var map = new HashMap<Long, S>();
+
+        for ( var stageId : stageIds ) {
+            map.put( stageId, this.stageById( stageId ) );
+        }
+
+        return map;
+    }
+
+    @Override
+    public S followTo(L link) {
+        return this.stageById( link.to() );
+    }
+
+    @Override
+    public S followFrom(L link) {
+        return this.stageById( link.from() );
+    }
+
+    /**
+     * Kind of cached value
+     */
+    private enum Slot {
+        STAGE, OUTGOINGS, INCOMINGS
+    }
+
+    /**
+     * Key of a cached value
+     */
+    private record Entry(Slot slot, long stageId) {
+
+    }
+
+}
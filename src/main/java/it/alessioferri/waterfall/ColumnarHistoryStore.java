@@ -0,0 +1,133 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * HistoryStore keeping each field in a primitive array: 8 bytes for the task id, 4 for the stage, 4 for the date, 2
+ * for status and result and 4 for the task chain. Stage ids are stored as codes of a dictionary local to the store, as
+ * a wave only touches the stages of its plan.
+ *
+ * @author Alessio
+ */
+final class ColumnarHistoryStore implements HistoryStore {
+
+    private static final TaskStatus[] STATUSES = TaskStatus.values();
+    private static final TaskResult[] RESULTS = TaskResult.values();
+
+    private long[] taskIds;
+    private int[] stageCodes;
+    private int[] epochDays;
+    private byte[] statuses;
+    private byte[] results;
+    private int[] previous;
+    private int size;
+
+    private final LongIntMap codeByStage;
+    private long[] stageByCode;
+    private int codeCount;
+
+    ColumnarHistoryStore() {
+        this.taskIds = new long[16];
+        this.stageCodes = new int[16];
+        this.epochDays = new int[16];
+        this.statuses = new byte[16];
+        this.results = new byte[16];
+        this.previous = new int[16];
+        this.size = 0;
+        this.codeByStage = new LongIntMap( 16 );
+        this.stageByCode = new long[16];
+        this.codeCount = 0;
+    }
+
+    @Override
+    public HistoryStore empty() {
+        return new ColumnarHistoryStore();
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void append(TaskSnapshot snapshot, int previous) {
+        var epochDay = Objects.requireNonNull( snapshot.takenAt(), "snapshot date is required" ).toEpochDay();
+
+        if ( epochDay != ( int ) epochDay ) {
+            throw new IllegalArgumentException( "snapshot date " + snapshot.takenAt() + " is out of range" );
+        }
+
+        if ( this.size == this.taskIds.length ) {
+            var capacity = this.size * 2;
+            this.taskIds = Arrays.copyOf( this.taskIds, capacity );
+            this.stageCodes = Arrays.copyOf( this.stageCodes, capacity );
+            this.epochDays = Arrays.copyOf( this.epochDays, capacity );
+            this.statuses = Arrays.copyOf( this.statuses, capacity );
+            this.results = Arrays.copyOf( this.results, capacity );
+            this.previous = Arrays.copyOf( this.previous, capacity );
+        }
+
+        this.taskIds[this.size] = snapshot.taskId();
+        this.stageCodes[this.size] = this.codeOf( snapshot.stageId() );
+        this.epochDays[this.size] = ( int ) epochDay;
+        this.statuses[this.size] = ( byte ) snapshot.status().ordinal();
+        this.results[this.size] = ( byte ) snapshot.result().ordinal();
+        this.previous[this.size] = previous;
+        this.size++;
+    }
+
+    private int codeOf(long stageId) {
+        var code = this.codeByStage.get( stageId );
+
+        if ( code >= 0 ) {
+            return code;
+        }
+
+        if ( this.codeCount == this.stageByCode.length ) {
+            this.stageByCode = Arrays.copyOf( this.stageByCode, this.codeCount * 2 );
+        }
+
+        code = this.codeCount++;
+        this.stageByCode[code] = stageId;
+        this.codeByStage.put( stageId, code );
+        return code;
+    }
+
+    @Override
+    public TaskSnapshot get(int position) {
+        Objects.checkIndex( position, this.size );
+
+        return new TaskSnapshot( this.taskIds[position], this.stageByCode[this.stageCodes[position]],
+                LocalDate.ofEpochDay( this.epochDays[position] ), STATUSES[this.statuses[position]],
+                RESULTS[this.results[position]] );
+    }
+
+    @Override
+    public int previousAt(int position) {
+        Objects.checkIndex( position, this.size );
+        return this.previous[position];
+    }
+
+}
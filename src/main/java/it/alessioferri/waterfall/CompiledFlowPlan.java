@@ -0,0 +1,462 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Snapshot of a FlowPlan where stages and links are addressed by dense indexes. Adjacency is kept in CSR form: the
+ * links of the stage i are found in the range [offsets[i], offsets[i + 1]) of the targets array.
+ *
+ * @author Alessio
+ * @param <E> Enumeration of block ids
+ * @param <S> FlowStage type
+ * @param <L> Link type
+ */
+public final class CompiledFlowPlan<E extends Enum<E>, S extends FlowStage<E>, L extends Link>
+        implements IndexedFlowPlan<E, S, L> {
+
+    /**
+     * Marker of the stages whose incoming delays can't be sorted once for all
+     */
+    private static final int[] DATE_DEPENDENT = new int[0];
+
+    private final String title;
+    private final List<S> stages;
+    private final List<L> links;
+    private final LongIntMap indexById;
+    private final int[] linkFrom;
+    private final int[] linkTo;
+    private final int[] outOffsets;
+    private final int[] outLinks;
+    private final int[] inOffsets;
+    private final int[] inLinks;
+    private final int[] startSet;
+    private final int[] sequence;
+    private final int[] order;
+    private final BitSet backward;
+    private final ReachabilityMemo reachability;
+    private final AtomicReferenceArray<List<Long>> dependencies;
+    private final AtomicReferenceArray<int[]> delayOrders;
+
+    private CompiledFlowPlan(String title, List<S> stages, List<L> links, LongIntMap indexById, int[] linkFrom,
+            int[] linkTo, int[] startSet) {
+        this.title = title;
+        this.stages = stages;
+        this.links = links;
+        this.indexById = indexById;
+        this.linkFrom = linkFrom;
+        this.linkTo = linkTo;
+        this.startSet = startSet;
+        this.reachability = new ReachabilityMemo();
+        this.dependencies = new AtomicReferenceArray<>( stages.size() );
+        this.delayOrders = new AtomicReferenceArray<>( stages.size() );
+
+        this.outOffsets = new int[stages.size() + 1];
+        this.outLinks = new int[links.size()];
+        this.inOffsets = new int[stages.size() + 1];
+        this.inLinks = new int[links.size()];
+
+        fillAdjacency( linkFrom, this.outOffsets, this.outLinks );
+        fillAdjacency( linkTo, this.inOffsets, this.inLinks );
+
+        this.sequence = new int[stages.size()];
+        this.order = new int[stages.size()];
+        this.backward = new BitSet( links.size() );
+
+        this.sequenceStages( this.sequence, this.order, this.backward );
+    }
+
+    /**
+     * Sequence the stages in reverse post order of an iterative depth first visit, starting from the start set and then
+     * from every stage not yet visited. Every link that points to a stage with a lower or equal sequence number closes a
+     * cycle and is marked as backward, all the other links respect the sequence order.
+     *
+     * @param sequence sequence number of every stage, to fill
+     * @param order    stage index of every sequence number, to fill
+     * @param backward backward links, to fill
+     */
+    private void sequenceStages(int[] sequence, int[] order, BitSet backward) {
+        var n = sequence.length;
+        var visited = new BitSet( n );
+        var stack = new int[n];
+        var position = new int[n];
+        int next = n;
+
+        for ( int r = -this.startSet.length; r < n; r++ ) {
+            var root = r < 0 ? this.startSet[r + this.startSet.length] : r;
+
+            if ( visited.get( root ) ) {
+                continue;
+            }
+
+            int top = 0;
+            visited.set( root );
+            stack[top++] = root;
+            position[root] = this.outOffsets[root];
+
+            while ( top > 0 ) {
+                var cursor = stack[top - 1];
+
+                if ( position[cursor] < this.outOffsets[cursor + 1] ) {
+                    var follow = this.linkTo[this.outLinks[position[cursor]++]];
+
+                    if ( !visited.get( follow ) ) {
+                        visited.set( follow );
+                        stack[top++] = follow;
+                        position[follow] = this.outOffsets[follow];
+                    }
+                } else {
+                    top--;
+                    sequence[cursor] = --next;
+                    order[next] = cursor;
+                }
+            }
+        }
+
+        for ( int l = 0; l < this.linkFrom.length; l++ ) {
+            if ( sequence[this.linkFrom[l]] >= sequence[this.linkTo[l]] ) {
+                backward.set( l );
+            }
+        }
+    }
+
+    /**
+     * Counting sort of the links by endpoint, preserving the original link order inside every stage
+     *
+     * @param endpoints endpoint of every link
+     * @param offsets   offsets to fill
+     * @param targets   link indexes to fill
+     */
+    private static void fillAdjacency(int[] endpoints, int[] offsets, int[] targets) {
+        for ( var e : endpoints ) {
+            offsets[e + 1]++;
+        }
+
+        for ( int i = 1; i < offsets.length; i++ ) {
+            offsets[i] += offsets[i - 1];
+        }
+
+        var next = new int[offsets.length - 1];
+        System.arraycopy( offsets, 0, next, 0, next.length );
+
+        for ( int l = 0; l < endpoints.length; l++ ) {
+            targets[next[endpoints[l]]++] = l;
+        }
+    }
+
+    /**
+     * Compile a plan, the plan is read once and never referenced again. Composite plans are flattened in the process.
+     *
+     * @param <E>  Enum type
+     * @param <S>  FlowStage with E as its' kind
+     * @param <L>  Link
+     * @param plan plan to be compiled
+     * @return the compiled plan, or the plan itself if it is already compiled
+     */
+    public static <E extends Enum<E>, S extends FlowStage<E>, L extends Link> CompiledFlowPlan<E, S, L> compile(
+            FlowPlan<E, S, L> plan) {
+        if ( plan instanceof CompiledFlowPlan<E, S, L> compiled ) {
+            return compiled;
+        }
+
+        if ( plan instanceof CompositeFlowPlan<E, S, L> composite ) {
+            return composite.flatten();
+        }
+
+        return compile( plan.title(), plan.stages(), plan.links(), plan.startSet() );
+    }
+
+    /**
+     * Compile a plan from its parts
+     *
+     * @param <E>    Enum type
+     * @param <S>    FlowStage with E as its' kind
+     * @param <L>    Link
+     * @param title  title of the plan
+     * @param stages stages of the plan
+     * @param links  links between the stages
+     * @param starts start set of the plan
+     * @return the compiled plan
+     */
+    static <E extends Enum<E>, S extends FlowStage<E>, L extends Link> CompiledFlowPlan<E, S, L> compile(String title,
+            Collection<S> stages, Collection<L> links, Collection<S> starts) {
+        var stageList = List.copyOf( stages );
+        var linkList = List.copyOf( links );
+        var indexById = new LongIntMap( stageList.size() );
+
+        for ( int i = 0; i < stageList.size(); i++ ) {
+            var id = stageList.get( i ).stageId();
+
+            if ( indexById.containsKey( id ) ) {
+                throw new RuntimeException( "duplicated stage id " + id + " in plan " + title );
+            }
+
+            indexById.put( id, i );
+        }
+
+        var linkFrom = new int[linkList.size()];
+        var linkTo = new int[linkList.size()];
+
+        for ( int l = 0; l < linkList.size(); l++ ) {
+            var link = linkList.get( l );
+            linkFrom[l] = resolve( indexById, link.from(), title );
+            linkTo[l] = resolve( indexById, link.to(), title );
+        }
+
+        var startSet = new int[starts.size()];
+        int k = 0;
+
+        for ( var s : starts ) {
+            startSet[k++] = resolve( indexById, s.stageId(), title );
+        }
+
+        return new CompiledFlowPlan<>( title, stageList, linkList, indexById, linkFrom, linkTo, startSet );
+    }
+
+    private static int resolve(LongIntMap indexById, long stageId, String title) {
+        int index = indexById.get( stageId );
+
+        if ( index < 0 ) {
+            throw new RuntimeException( "stage id " + stageId + " is not part of plan " + title );
+        }
+
+        return index;
+    }
+
+    @Override
+    public int stageCount() {
+        return this.stages.size();
+    }
+
+    @Override
+    public int linkCount() {
+        return this.links.size();
+    }
+
+    @Override
+    public int indexOf(long stageId) {
+        return this.indexById.get( stageId );
+    }
+
+    @Override
+    public S stageAt(int index) {
+        return this.stages.get( index );
+    }
+
+    @Override
+    public L linkAt(int index) {
+        return this.links.get( index );
+    }
+
+    @Override
+    public int linkFrom(int link) {
+        return this.linkFrom[link];
+    }
+
+    @Override
+    public int linkTo(int link) {
+        return this.linkTo[link];
+    }
+
+    @Override
+    public int outgoingCount(int stage) {
+        return this.outOffsets[stage + 1] - this.outOffsets[stage];
+    }
+
+    @Override
+    public int outgoingAt(int stage, int k) {
+        return this.outLinks[this.outOffsets[stage] + k];
+    }
+
+    @Override
+    public int incomingCount(int stage) {
+        return this.inOffsets[stage + 1] - this.inOffsets[stage];
+    }
+
+    @Override
+    public int incomingAt(int stage, int k) {
+        return this.inLinks[this.inOffsets[stage] + k];
+    }
+
+    @Override
+    public int sequenceOf(int stage) {
+        return this.sequence[stage];
+    }
+
+    @Override
+    public int stageAtSequence(int sequence) {
+        return this.order[sequence];
+    }
+
+    @Override
+    public List<Long> dependenciesOf(int stage) {
+        var deps = this.dependencies.get( stage );
+
+        if ( deps == null ) {
+            deps = IndexedFlowPlan.super.dependenciesOf( stage );
+            this.dependencies.lazySet( stage, deps );
+        }
+
+        return deps;
+    }
+
+    @Override
+    public boolean isBackward(int link) {
+        return this.backward.get( link );
+    }
+
+    @Override
+    public int[] startIndexes() {
+        return this.startSet.clone();
+    }
+
+    @Override
+    public BitSet reachableFrom(int[] starts) {
+        return this.reachability.reachableFrom( this, starts );
+    }
+
+    @Override
+    public String title() {
+        return this.title;
+    }
+
+    @Override
+    public Collection<S> stages() {
+        return this.stages;
+    }
+
+    @Override
+    public Collection<L> links() {
+        return this.links;
+    }
+
+    @Override
+    public Collection<S> startSet() {
+        var list = new ArrayList<S>( this.startSet.length );
+
+        for ( var s : this.startSet ) {
+            list.add( this.stages.get( s ) );
+        }
+
+        return list;
+    }
+
+    @Override
+    public Collection<L> outgoings(S stage) {
+        var index = resolve( this.indexById, stage.stageId(), this.title );
+        return new LinkRange( this.outLinks, this.outOffsets[index], this.outOffsets[index + 1] );
+    }
+
+    @Override
+    public Collection<L> incomings(S stage) {
+        var index = resolve( this.indexById, stage.stageId(), this.title );
+        return new IncomingRange( index );
+    }
+
+    @Override
+    public S stageById(long stageId) {
+        return this.stages.get( resolve( this.indexById, stageId, this.title ) );
+    }
+
+    @Override
+    public S followTo(L link) {
+        return this.stageById( link.to() );
+    }
+
+    @Override
+    public S followFrom(L link) {
+        return this.stageById( link.from() );
+    }
+
+    /**
+     * Positions of the links entering the stage sorted by increasing delay, computed on first use
+     *
+     * @param stage index of the stage
+     * @return the sorted positions, or null if the order of the delays depends on the date
+     */
+    private int[] delayOrderOf(int stage) {
+        var order = this.delayOrders.get( stage );
+
+        if ( order == null ) {
+            order = DelayOrder.sort( new LinkRange( this.inLinks, this.inOffsets[stage], this.inOffsets[stage + 1] ) );
+            this.delayOrders.lazySet( stage, order != null ? order : DATE_DEPENDENT );
+        }
+
+        return order != DATE_DEPENDENT ? order : null;
+    }
+
+    /**
+     * Read only view over a CSR range
+     */
+    private class LinkRange extends AbstractList<L> implements RandomAccess {
+
+        private final int[] targets;
+        private final int from;
+        private final int to;
+
+        private LinkRange(int[] targets, int from, int to) {
+            this.targets = targets;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public L get(int index) {
+            if ( index < 0 || index >= this.to - this.from ) {
+                throw new IndexOutOfBoundsException( index );
+            }
+            return links.get( this.targets[this.from + index] );
+        }
+
+        @Override
+        public int size() {
+            return this.to - this.from;
+        }
+
+    }
+
+    /**
+     * Read only view over the links entering a stage, aware of their order by delay
+     */
+    private final class IncomingRange extends LinkRange implements DelayOrder {
+
+        private final int stage;
+
+        private IncomingRange(int stage) {
+            super( inLinks, inOffsets[stage], inOffsets[stage + 1] );
+            this.stage = stage;
+        }
+
+        @Override
+        public int[] delayOrder() {
+            return delayOrderOf( this.stage );
+        }
+
+    }
+
+}
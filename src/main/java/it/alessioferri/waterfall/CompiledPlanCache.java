@@ -0,0 +1,146 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of compiled plans with least recently used eviction. A compiled plan is immutable, so the same instance
+ * is handed to every scheduler running the same plan.
+ *
+ * @author Alessio
+ */
+public final class CompiledPlanCache {
+
+    /**
+     * Capacity of the process wide cache
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final CompiledPlanCache SHARED = new CompiledPlanCache( DEFAULT_CAPACITY );
+
+    private final Map<PlanKey, CompiledFlowPlan<?, ?, ?>> plans;
+    private long hits;
+    private long misses;
+
+    /**
+     * Create a cache
+     *
+     * @param capacity maximum number of compiled plans kept
+     */
+    public CompiledPlanCache(int capacity) {
+        if ( capacity <= 0 ) {
+            throw new IllegalArgumentException( "capacity must be positive" );
+        }
+
+        this.plans = new LinkedHashMap<>( 16, 0.75f, true ) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PlanKey, CompiledFlowPlan<?, ?, ?>> eldest) {
+                return this.size() > capacity;
+            }
+
+        };
+    }
+
+    /**
+     * Process wide cache
+     *
+     * @return the shared cache
+     */
+    public static CompiledPlanCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Get the compiled plan for the key, compiling the plan supplied on a miss. The plan is compiled outside the lock,
+     * if two threads miss the same key at once the first one stored wins.
+     *
+     * @param <E>  Enum type
+     * @param <S>  FlowStage with E as its' kind
+     * @param <L>  Link
+     * @param key  identity and version of the plan
+     * @param plan supplier of the plan, called only on a miss
+     * @return the shared compiled plan
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Enum<E>, S extends FlowStage<E>, L extends Link> CompiledFlowPlan<E, S, L> compile(PlanKey key,
+            Supplier<? extends FlowPlan<E, S, L>> plan) {
+        synchronized ( this ) {
+            var cached = this.plans.get( key );
+
+            if ( cached != null ) {
+                this.hits++;
+                return ( CompiledFlowPlan<E, S, L> ) cached;
+            }
+
+            this.misses++;
+        }
+
+        var compiled = CompiledFlowPlan.compile( plan.get() );
+
+        synchronized ( this ) {
+            var cached = this.plans.putIfAbsent( key, compiled );
+            return cached != null ? ( CompiledFlowPlan<E, S, L> ) cached : compiled;
+        }
+    }
+
+    /**
+     * Drop the compiled plan for the key
+     *
+     * @param key identity and version of the plan
+     */
+    public synchronized void invalidate(PlanKey key) {
+        this.plans.remove( key );
+    }
+
+    /**
+     * Number of compiled plans kept
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return this.plans.size();
+    }
+
+    /**
+     * Number of lookups served from the cache
+     *
+     * @return
+     */
+    public synchronized long hits() {
+        return this.hits;
+    }
+
+    /**
+     * Number of lookups that required a compilation
+     *
+     * @return
+     */
+    public synchronized long misses() {
+        return this.misses;
+    }
+
+}
@@ -0,0 +1,304 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * FlowPlan where a stage can stand for a whole sub plan. The sub plans are flattened into a single graph: the stages
+ * of the top level plan keep their ids, the sub plan stages get new ids after the highest top level one. A link
+ * entering a sub plan stage is replaced by links to the start set of the sub plan, a link leaving it is replaced by
+ * links from the sub plan stages without outgoing links.
+ * <p>
+ * As a FlowPlan it shows the flattened graph, the same one the scheduler runs. It is flattened on first use, the top
+ * level plan and the sub plans must not change afterwards; root() gives the top level plan as it was composed.
+ *
+ * @author Alessio
+ * @param <E> Enumeration of block ids
+ * @param <S> FlowStage type
+ * @param <L> Link type
+ */
+public final class CompositeFlowPlan<E extends Enum<E>, S extends FlowStage<E>, L extends Link>
+        implements FlowPlan<E, S, L> {
+
+    private final FlowPlan<E, S, L> root;
+    private final PlanComposer<E, S, L> composer;
+    private volatile CompiledFlowPlan<E, S, L> flat;
+
+    /**
+     * @param root     top level plan
+     * @param composer rules to find and remap the sub plans
+     */
+    public CompositeFlowPlan(FlowPlan<E, S, L> root, PlanComposer<E, S, L> composer) {
+        this.root = Objects.requireNonNull( root );
+        this.composer = Objects.requireNonNull( composer );
+    }
+
+    public static <E extends Enum<E>, S extends FlowStage<E>, L extends Link> CompositeFlowPlan<E, S, L> of(
+            FlowPlan<E, S, L> root, PlanComposer<E, S, L> composer) {
+        return new CompositeFlowPlan<>( root, composer );
+    }
+
+    public FlowPlan<E, S, L> root() {
+        return this.root;
+    }
+
+    public PlanComposer<E, S, L> composer() {
+        return this.composer;
+    }
+
+    /**
+     * Flattened plan shown by this plan, made on first use
+     *
+     * @return
+     */
+    private CompiledFlowPlan<E, S, L> flat() {
+        var flat = this.flat;
+
+        if ( flat == null ) {
+            flat = this.flatten();
+            this.flat = flat;
+        }
+
+        return flat;
+    }
+
+    /**
+     * Flatten the sub plans and compile the resulting graph, reading the plans again
+     *
+     * @return the compiled flat plan
+     */
+    public CompiledFlowPlan<E, S, L> flatten() {
+        long nextId = 0;
+
+        for ( var stage : this.root.stages() ) {
+            nextId = Math.max( nextId, stage.stageId() + 1 );
+        }
+
+        var flattening = new Flattening<>( this.composer, nextId );
+        var fragments = flattening.expand( this.root, true );
+        var starts = new ArrayList<S>();
+
+        for ( var stage : this.root.startSet() ) {
+            starts.addAll( fragments.get( stage.stageId() ).entries() );
+        }
+
+        return CompiledFlowPlan.compile( this.root.title(), flattening.stages, flattening.links, starts );
+    }
+
+    @Override
+    public String title() {
+        return this.root.title();
+    }
+
+    @Override
+    public Collection<S> stages() {
+        return this.flat().stages();
+    }
+
+    @Override
+    public Collection<L> links() {
+        return this.flat().links();
+    }
+
+    @Override
+    public Collection<S> startSet() {
+        return this.flat().startSet();
+    }
+
+    @Override
+    public Collection<L> outgoings(S stage) {
+        return this.flat().outgoings( stage );
+    }
+
+    @Override
+    public Collection<L> incomings(S stage) {
+        return this.flat().incomings( stage );
+    }
+
+    @Override
+    public S stageById(long stageId) {
+        return this.flat().stageById( stageId );
+    }
+
+    @Override
+    public S followTo(L link) {
+        return this.flat().followTo( link );
+    }
+
+    @Override
+    public S followFrom(L link) {
+        return this.flat().followFrom( link );
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CompositeFlowPlan<?, ?, ?> other && this.root.equals( other.root )
+                && this.composer.equals( other.composer );
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash( this.root, this.composer );
+    }
+
+    @Override
+    public String toString() {
+        return "CompositeFlowPlan[root=" + this.root.title() + "]";
+    }
+
+    /**
+     * Flattened stages standing for a stage of a plan: a plain stage is both the entry and the exit of itself
+     *
+     * @param <S>     FlowStage type
+     * @param plain   true if the stage is not a sub plan
+     * @param entries stages reached by the links entering the stage
+     * @param exits   stages left by the links leaving the stage
+     */
+    private record Fragment<S>(boolean plain, List<S> entries, List<S> exits) {
+
+        static <S> Fragment<S> of(S stage) {
+            return new Fragment<>( true, List.of( stage ), List.of( stage ) );
+        }
+
+    }
+
+    /**
+     * State of a flattening: the flat stages and links collected so far and the sub plans being expanded
+     */
+    private static final class Flattening<E extends Enum<E>, S extends FlowStage<E>, L extends Link> {
+
+        private final PlanComposer<E, S, L> composer;
+        private final Set<FlowPlan<E, S, L>> expanding;
+        private final List<S> stages;
+        private final List<L> links;
+        private long nextId;
+
+        Flattening(PlanComposer<E, S, L> composer, long nextId) {
+            this.composer = composer;
+            this.expanding = Collections.newSetFromMap( new IdentityHashMap<>() );
+            this.stages = new ArrayList<>();
+            this.links = new ArrayList<>();
+            this.nextId = nextId;
+        }
+
+        /**
+         * Add the stages and links of the plan to the flat plan, expanding the sub plans recursively
+         *
+         * @param plan    plan to expand
+         * @param keepIds true if the plain stages of the plan keep their ids
+         * @return fragment of every stage of the plan by stage id
+         */
+        Map<Long, Fragment<S>> expand(FlowPlan<E, S, L> plan, boolean keepIds) {
+            if ( !this.expanding.add( plan ) ) {
+                throw new RuntimeException( "plan " + plan.title() + " includes itself" );
+            }
+
+            var fragments = new HashMap<Long, Fragment<S>>();
+
+            for ( var stage : plan.stages() ) {
+                var subPlan = this.composer.subPlanOf( stage );
+                Fragment<S> fragment;
+
+                if ( subPlan.isPresent() ) {
+                    fragment = this.expandSubPlan( subPlan.get() );
+                } else {
+                    var flat = keepIds ? stage : this.composer.remap( stage, this.nextId++ );
+                    this.stages.add( flat );
+                    fragment = Fragment.of( flat );
+                }
+
+                if ( fragments.put( stage.stageId(), fragment ) != null ) {
+                    throw new RuntimeException( "duplicated stage id " + stage.stageId() + " in plan " + plan.title() );
+                }
+            }
+
+            for ( var link : plan.links() ) {
+                var from = fragmentOf( fragments, link.from(), plan );
+                var to = fragmentOf( fragments, link.to(), plan );
+
+                if ( keepIds && from.plain() && to.plain() ) {
+                    this.links.add( link );
+                    continue;
+                }
+
+                for ( var exit : from.exits() ) {
+                    for ( var entry : to.entries() ) {
+                        this.links.add( this.composer.remap( link, exit.stageId(), entry.stageId() ) );
+                    }
+                }
+            }
+
+            this.expanding.remove( plan );
+            return fragments;
+        }
+
+        private Fragment<S> expandSubPlan(FlowPlan<E, S, L> subPlan) {
+            var fragments = this.expand( subPlan, false );
+            var sources = new HashSet<Long>();
+
+            for ( var link : subPlan.links() ) {
+                sources.add( link.from() );
+            }
+
+            var entries = new ArrayList<S>();
+            var exits = new ArrayList<S>();
+
+            for ( var stage : subPlan.startSet() ) {
+                entries.addAll( fragmentOf( fragments, stage.stageId(), subPlan ).entries() );
+            }
+
+            for ( var stage : subPlan.stages() ) {
+                if ( !sources.contains( stage.stageId() ) ) {
+                    exits.addAll( fragments.get( stage.stageId() ).exits() );
+                }
+            }
+
+            if ( entries.isEmpty() || exits.isEmpty() ) {
+                throw new RuntimeException( "sub plan " + subPlan.title() + " must have both start and exit stages" );
+            }
+
+            return new Fragment<>( false, entries, exits );
+        }
+
+        private static <S> Fragment<S> fragmentOf(Map<Long, Fragment<S>> fragments, long stageId,
+                FlowPlan<?, ?, ?> plan) {
+            var fragment = fragments.get( stageId );
+
+            if ( fragment == null ) {
+                throw new RuntimeException( "stage id " + stageId + " is not part of plan " + plan.title() );
+            }
+
+            return fragment;
+        }
+
+    }
+
+}
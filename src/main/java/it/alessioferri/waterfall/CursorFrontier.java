@@ -0,0 +1,216 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Cursors of a wave kept as primitive stage ids. The scheduler adds them with addCursor, that ignores a stage already
+ * in the frontier, and consumes them with removeWhere, that visits them in order and compacts the survivors in a
+ * single pass. The frontier is still a plain List for the callbacks: add, set and add at a position behave as in an
+ * ArrayList, duplicates included.
+ *
+ * @author Alessio
+ */
+public final class CursorFrontier extends AbstractList<Long> implements RandomAccess {
+
+    private long[] cursors;
+    private int size;
+    /**
+     * Number of occurrences of every cursor, minus one
+     */
+    private final LongIntMap members;
+
+    public CursorFrontier() {
+        this.cursors = new long[16];
+        this.size = 0;
+        this.members = new LongIntMap( 16 );
+    }
+
+    /**
+     * Add a cursor after the others
+     *
+     * @param stageId id of the stage
+     * @return false if the stage was already a cursor
+     */
+    public boolean addCursor(long stageId) {
+        if ( this.members.containsKey( stageId ) ) {
+            return false;
+        }
+
+        this.insert( this.size, stageId );
+        return true;
+    }
+
+    private void insert(int index, long stageId) {
+        if ( this.size == this.cursors.length ) {
+            this.cursors = Arrays.copyOf( this.cursors, this.size * 2 );
+        }
+
+        System.arraycopy( this.cursors, index, this.cursors, index + 1, this.size - index );
+        this.cursors[index] = stageId;
+        this.size++;
+        this.enter( stageId );
+        this.modCount++;
+    }
+
+    private void enter(long stageId) {
+        this.members.put( stageId, this.members.get( stageId ) + 1 );
+    }
+
+    private void leave(long stageId) {
+        var others = this.members.get( stageId );
+
+        if ( others > 0 ) {
+            this.members.put( stageId, others - 1 );
+        } else {
+            this.members.remove( stageId );
+        }
+    }
+
+    /**
+     * Check if the stage is a cursor
+     *
+     * @param stageId id of the stage
+     * @return true if the stage is a cursor
+     */
+    public boolean containsCursor(long stageId) {
+        return this.members.containsKey( stageId );
+    }
+
+    /**
+     * Stage id of the cursor at the position
+     *
+     * @param index position of the cursor
+     * @return the stage id
+     */
+    public long cursorAt(int index) {
+        Objects.checkIndex( index, this.size );
+        return this.cursors[index];
+    }
+
+    /**
+     * Visit the cursors in order and remove the ones matching the filter. The filter may add cursors, they are visited
+     * in the same pass.
+     *
+     * @param filter test of the cursors to remove
+     * @return true if any cursor was removed
+     */
+    public boolean removeWhere(LongPredicate filter) {
+        int kept = 0;
+
+        for ( int i = 0; i < this.size; i++ ) {
+            var cursor = this.cursors[i];
+
+            if ( filter.test( cursor ) ) {
+                this.leave( cursor );
+            } else {
+                this.cursors[kept++] = cursor;
+            }
+        }
+
+        var removed = kept < this.size;
+        this.size = kept;
+
+        if ( removed ) {
+            this.modCount++;
+        }
+
+        return removed;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super Long> filter) {
+        return this.removeWhere( filter::test );
+    }
+
+    @Override
+    public boolean add(Long stageId) {
+        this.insert( this.size, stageId );
+        return true;
+    }
+
+    @Override
+    public void add(int index, Long stageId) {
+        Objects.checkIndex( index, this.size + 1 );
+        this.insert( index, stageId );
+    }
+
+    @Override
+    public Long get(int index) {
+        return this.cursorAt( index );
+    }
+
+    @Override
+    public Long set(int index, Long stageId) {
+        var cursor = this.cursorAt( index );
+
+        this.cursors[index] = stageId;
+        this.leave( cursor );
+        this.enter( stageId );
+
+        return cursor;
+    }
+
+    @Override
+    public Long remove(int index) {
+        var cursor = this.cursorAt( index );
+
+        System.arraycopy( this.cursors, index + 1, this.cursors, index, this.size - index - 1 );
+        this.size--;
+        this.leave( cursor );
+        this.modCount++;
+
+        return cursor;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Long stageId && this.containsCursor( stageId );
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Number of changes to the frontier
+     *
+     * @return
+     */
+    int revision() {
+        return this.modCount;
+    }
+
+    @Override
+    public void clear() {
+        this.size = 0;
+        this.members.clear();
+        this.modCount++;
+    }
+
+}
@@ -0,0 +1,82 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Order of a list of links by increasing delay, computed once when the delays compare the same way on every date:
+ * either all of them are expressed in days or all of them in whole months
+ *
+ * @author Alessio
+ */
+interface DelayOrder {
+
+    /**
+     * Positions of the links sorted by increasing delay, links with the same delay keep their relative order
+     *
+     * @return the sorted positions, or null if the order of the delays depends on the date
+     */
+    public int[] delayOrder();
+
+    /**
+     * Sort the links by delay
+     *
+     * @param links links to sort
+     * @return the sorted positions, or null if the order of the delays depends on the date
+     */
+    static int[] sort(List<? extends Link> links) {
+        var keys = new long[links.size()];
+        boolean inDays = false;
+        boolean inMonths = false;
+
+        for ( int k = 0; k < keys.length; k++ ) {
+            if ( !( links.get( k ).delay() instanceof DelayDate delay ) ) {
+                return null;
+            }
+
+            var months = delay.years() * 12L + delay.months();
+
+            if ( months == 0 ) {
+                keys[k] = delay.days();
+                inDays |= delay.days() != 0;
+            } else if ( delay.days() == 0 ) {
+                keys[k] = months;
+                inMonths = true;
+            } else {
+                return null;
+            }
+        }
+
+        if ( inDays && inMonths ) {
+            return null;
+        }
+
+        var positions = new Integer[keys.length];
+        Arrays.setAll( positions, k -> k );
+        Arrays.sort( positions, Comparator.comparingLong( k -> keys[k] ) );
+
+        return Arrays.stream( positions ).mapToInt( Integer::intValue ).toArray();
+    }
+
+}
@@ -118,6 +118,56 @@ public interface FlowPlan<E extends Enum<E>, S extends FlowStage<E>, L extends L
      */
     public S followFrom(L link);
 
+    /**
+     * Fetch many stages at once, plans backed by a storage should override it with a single query
+     *
+     * @param stageIds ids of the stages
+     * @return the stages by id
+     */
+    public default Map<Long, S> stagesById(Collection<Long> stageIds) {
+        var map = new HashMap<Long, S>();
+
+        for ( var stageId : stageIds ) {
+            map.put( stageId, this.stageById( stageId ) );
+        }
+
+        return map;
+    }
+
+    /**
+     * Fetch the outgoings links of many stages at once, plans backed by a storage should override it with a single
+     * query
+     *
+     * @param stages stages to explore
+     * @return the outgoings links by stage id
+     */
+    public default Map<Long, Collection<L>> outgoingsOf(Collection<S> stages) {
+        var map = new HashMap<Long, Collection<L>>();
+
+        for ( var stage : stages ) {
+            map.put( stage.stageId(), this.outgoings( stage ) );
+        }
+
+        return map;
+    }
+
+    /**
+     * Fetch the incomings links of many stages at once, plans backed by a storage should override it with a single
+     * query
+     *
+     * @param stages stages to explore
+     * @return the incomings links by stage id
+     */
+    public default Map<Long, Collection<L>> incomingsOf(Collection<S> stages) {
+        var map = new HashMap<Long, Collection<L>>();
+
+        for ( var stage : stages ) {
+            map.put( stage.stageId(), this.incomings( stage ) );
+        }
+
+        return map;
+    }
+
     /**
      * Explore the next stages in a breadth first kind
      * 
@@ -0,0 +1,76 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * HistoryStore over a list of TaskSnapshot
+ *
+ * @author Alessio
+ */
+final class HeapHistoryStore implements HistoryStore {
+
+    private final List<TaskSnapshot> snapshots;
+    private int[] previous;
+
+    HeapHistoryStore() {
+        this.snapshots = new ArrayList<>();
+        this.previous = new int[16];
+    }
+
+    @Override
+    public HistoryStore empty() {
+        return new HeapHistoryStore();
+    }
+
+    @Override
+    public int size() {
+        return this.snapshots.size();
+    }
+
+    @Override
+    public void append(TaskSnapshot snapshot, int previous) {
+        var position = this.snapshots.size();
+
+        if ( position == this.previous.length ) {
+            this.previous = Arrays.copyOf( this.previous, position * 2 );
+        }
+
+        this.snapshots.add( snapshot );
+        this.previous[position] = previous;
+    }
+
+    @Override
+    public TaskSnapshot get(int position) {
+        return this.snapshots.get( position );
+    }
+
+    @Override
+    public int previousAt(int position) {
+        Objects.checkIndex( position, this.snapshots.size() );
+        return this.previous[position];
+    }
+
+}
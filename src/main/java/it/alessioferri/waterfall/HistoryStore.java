@@ -0,0 +1,100 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Append only storage of the snapshots of a wave, addressed by position. Every snapshot is stored with the position of
+ * the previous snapshot of its task, so the store holds the task chains as well.
+ *
+ * @author Alessio
+ */
+public interface HistoryStore {
+
+    /**
+     * Store that keeps the TaskSnapshot objects as they are added
+     *
+     * @return a new empty store
+     */
+    public static HistoryStore onHeap() {
+        return new HeapHistoryStore();
+    }
+
+    /**
+     * Store that keeps every field of the snapshots in its own primitive array, snapshots are rebuilt on read
+     *
+     * @return a new empty store
+     */
+    public static HistoryStore columnar() {
+        return new ColumnarHistoryStore();
+    }
+
+    /**
+     * New empty store of the same kind
+     *
+     * @return an empty store
+     */
+    public HistoryStore empty();
+
+    /**
+     * Number of snapshots stored
+     *
+     * @return
+     */
+    public int size();
+
+    /**
+     * Store a snapshot after the others
+     *
+     * @param snapshot snapshot to store
+     * @param previous position of the previous snapshot of the same task, or -1
+     */
+    public void append(TaskSnapshot snapshot, int previous);
+
+    /**
+     * Snapshot at the position
+     *
+     * @param position position of the snapshot, between 0 and size()
+     * @return the snapshot
+     */
+    public TaskSnapshot get(int position);
+
+    /**
+     * Position of the previous snapshot of the same task
+     *
+     * @param position position of the snapshot, between 0 and size()
+     * @return the position of the previous snapshot or -1 if it is the first one
+     */
+    public int previousAt(int position);
+
+    /**
+     * Release the resources held to write the store, the snapshots stay readable. Called when the wave is complete or
+     * the scheduler is closed, a store appended to afterwards takes them back.
+     */
+    public default void close() {
+    }
+
+    /**
+     * Release the storage once the store is no longer used, after a compaction
+     */
+    public default void discard() {
+    }
+
+}
@@ -0,0 +1,216 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FlowPlan where stages and links are addressed by dense indexes, stages from 0 to stageCount() and links from 0 to
+ * linkCount(). This is the view the scheduler runs against.
+ *
+ * @author Alessio
+ * @param <E> Enumeration of block ids
+ * @param <S> FlowStage type
+ * @param <L> Link type
+ */
+public interface IndexedFlowPlan<E extends Enum<E>, S extends FlowStage<E>, L extends Link> extends FlowPlan<E, S, L> {
+
+    /**
+     * Number of stages
+     *
+     * @return
+     */
+    public int stageCount();
+
+    /**
+     * Number of links
+     *
+     * @return
+     */
+    public int linkCount();
+
+    /**
+     * Dense index of the stage
+     *
+     * @param stageId id of the stage
+     * @return index of the stage or -1 if it is not part of the plan
+     */
+    public int indexOf(long stageId);
+
+    /**
+     * Stage at the specified index
+     *
+     * @param index dense index of the stage
+     * @return the stage
+     */
+    public S stageAt(int index);
+
+    /**
+     * Id of the stage at the specified index
+     *
+     * @param index dense index of the stage
+     * @return the stage id
+     */
+    public default long stageIdAt(int index) {
+        return this.stageAt( index ).stageId();
+    }
+
+    /**
+     * Link at the specified index
+     *
+     * @param index dense index of the link
+     * @return the link
+     */
+    public L linkAt(int index);
+
+    /**
+     * Index of the source stage of the link
+     *
+     * @param link index of the link
+     * @return index of the stage
+     */
+    public int linkFrom(int link);
+
+    /**
+     * Index of the target stage of the link
+     *
+     * @param link index of the link
+     * @return index of the stage
+     */
+    public int linkTo(int link);
+
+    /**
+     * Number of links leaving the stage
+     *
+     * @param stage index of the stage
+     * @return
+     */
+    public int outgoingCount(int stage);
+
+    /**
+     * Index of the k-th link leaving the stage
+     *
+     * @param stage index of the stage
+     * @param k     position of the link, between 0 and outgoingCount(stage)
+     * @return index of the link
+     */
+    public int outgoingAt(int stage, int k);
+
+    /**
+     * Number of links entering the stage
+     *
+     * @param stage index of the stage
+     * @return
+     */
+    public int incomingCount(int stage);
+
+    /**
+     * Index of the k-th link entering the stage
+     *
+     * @param stage index of the stage
+     * @param k     position of the link, between 0 and incomingCount(stage)
+     * @return index of the link
+     */
+    public int incomingAt(int stage, int k);
+
+    /**
+     * Sequence number of the stage, forward links always go from a lower to an higher sequence number
+     *
+     * @param stage index of the stage
+     * @return sequence number between 0 and stageCount()
+     */
+    public int sequenceOf(int stage);
+
+    /**
+     * Stage with the specified sequence number
+     *
+     * @param sequence sequence number
+     * @return index of the stage
+     */
+    public int stageAtSequence(int sequence);
+
+    /**
+     * Ids of the source stages of the links entering the stage, in the order expected by TaskScheduler.onDepsUpdates
+     *
+     * @param stage index of the stage
+     * @return the dependency ids, possibly shared and never to be modified
+     */
+    public default List<Long> dependenciesOf(int stage) {
+        var count = this.incomingCount( stage );
+        var deps = new Long[count];
+
+        for ( int k = 0; k < count; k++ ) {
+            deps[k] = this.stageIdAt( this.linkFrom( this.incomingAt( stage, k ) ) );
+        }
+
+        return List.of( deps );
+    }
+
+    /**
+     * Check if the link closes a loop in the plan, all the other links go from a lower to an higher sequence number
+     *
+     * @param link index of the link
+     * @return true if the link is backward
+     */
+    public boolean isBackward(int link);
+
+    /**
+     * Check if the stage was removed from the plan, a removed stage keeps its index but has no links
+     *
+     * @param stage index of the stage
+     * @return true if the stage is no longer part of the plan
+     */
+    public default boolean isRemoved(int stage) {
+        return false;
+    }
+
+    /**
+     * Indexes of the start set stages
+     *
+     * @return a copy of the start set indexes
+     */
+    public int[] startIndexes();
+
+    /**
+     * Set of the stages reachable from the start stages, start stages included
+     *
+     * @param starts indexes of the start stages
+     * @return the reachable set, possibly shared and never to be modified
+     */
+    public BitSet reachableFrom(int[] starts);
+
+    @Override
+    public default Map<Long, Long> sequenceStages() {
+        var map = new HashMap<Long, Long>();
+
+        for ( int i = 0; i < this.stageCount(); i++ ) {
+            if ( !this.isRemoved( i ) ) {
+                map.put( this.stageIdAt( i ), ( long ) this.sequenceOf( i ) );
+            }
+        }
+
+        return map;
+    }
+
+}
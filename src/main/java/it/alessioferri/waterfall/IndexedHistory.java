@@ -0,0 +1,528 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Append only history of a wave, indexed by stage and by task to find the latest snapshots without scanning it. The
+ * snapshots of a task are chained from the latest to the first, so the history of a task costs as much as its length.
+ * The snapshots themselves are kept by a HistoryStore, the stages skipped as a whole are kept as a set of plan indexes.
+ *
+ * @author Alessio
+ */
+public final class IndexedHistory extends AbstractList<TaskSnapshot> implements RandomAccess {
+
+    /**
+     * Smallest history worth compacting
+     */
+    private static final int MIN_COMPACTION_SIZE = 64;
+
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+
+    private final RetentionPolicy retention;
+    private final LongIntMap latestByStage;
+    private final LongIntMap latestByTask;
+    private final LongIntMap relatedStages;
+    private final LatestByTask latestView;
+    private HistoryStore snapshots;
+    private long[] taskOrder;
+    private int taskCount;
+    private long[] stageOrder;
+    private int stageCount;
+    private int compactionSize;
+    private IndexedFlowPlan<?, ?, ?> skipPlan;
+    private final BitSet skipped;
+    private int skippedCount;
+    private LocalDate skippedAt;
+    private int rewrites;
+    private Listener[] listeners;
+
+    public IndexedHistory() {
+        this( HistoryStore.onHeap(), RetentionPolicy.keepAll() );
+    }
+
+    /**
+     * Create an history over the store
+     *
+     * @param store     empty store of the snapshots
+     * @param retention policy for the snapshots to keep when the history is compacted
+     */
+    public IndexedHistory(HistoryStore store, RetentionPolicy retention) {
+        if ( store.size() != 0 ) {
+            throw new IllegalArgumentException( "the history store must be empty" );
+        }
+
+        this.retention = retention;
+        this.snapshots = store;
+        this.latestByStage = new LongIntMap( 16 );
+        this.latestByTask = new LongIntMap( 16 );
+        this.relatedStages = new LongIntMap( 16 );
+        this.latestView = new LatestByTask();
+        this.taskOrder = new long[16];
+        this.taskCount = 0;
+        this.stageOrder = new long[16];
+        this.stageCount = 0;
+        this.compactionSize = MIN_COMPACTION_SIZE;
+        this.skipped = new BitSet();
+        this.skippedCount = 0;
+        this.listeners = NO_LISTENERS;
+    }
+
+    /**
+     * Listener notified of every snapshot added to the history
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         * Called after the snapshot is added
+         *
+         * @param previous latest snapshot of the same task before the new one, null if there was none
+         * @param snapshot snapshot added
+         */
+        public void snapshotAdded(TaskSnapshot previous, TaskSnapshot snapshot);
+
+    }
+
+    /**
+     * Add a listener of the added snapshots. Waves sharing the history, like the copies made by withWaveId, each keep
+     * their own listener.
+     *
+     * @param listener listener to add
+     */
+    public void listen(Listener listener) {
+        this.listeners = Arrays.copyOf( this.listeners, this.listeners.length + 1 );
+        this.listeners[this.listeners.length - 1] = Objects.requireNonNull( listener, "listener is required" );
+    }
+
+    @Override
+    public boolean add(TaskSnapshot snapshot) {
+        var previous = this.listeners.length == 0 ? null : this.latestOfTask( snapshot.taskId() );
+
+        if ( !this.latestByTask.containsKey( snapshot.taskId() ) ) {
+            if ( this.taskCount == this.taskOrder.length ) {
+                this.taskOrder = Arrays.copyOf( this.taskOrder, this.taskCount * 2 );
+            }
+            this.taskOrder[this.taskCount++] = snapshot.taskId();
+        }
+
+        if ( !this.latestByStage.containsKey( snapshot.stageId() ) ) {
+            if ( this.stageCount == this.stageOrder.length ) {
+                this.stageOrder = Arrays.copyOf( this.stageOrder, this.stageCount * 2 );
+            }
+            this.stageOrder[this.stageCount++] = snapshot.stageId();
+        }
+
+        if ( snapshot.status() != TaskStatus.SKIPPED ) {
+            this.relatedStages.put( snapshot.stageId(), 0 );
+        }
+
+        if ( this.skippedCount > 0 ) {
+            var index = this.skipPlan.indexOf( snapshot.stageId() );
+
+            if ( index >= 0 && this.skipped.get( index ) ) {
+                this.skipped.clear( index );
+                this.skippedCount--;
+                this.rewrites++;
+            }
+        }
+
+        this.append( this.snapshots, snapshot );
+        this.modCount++;
+
+        if ( this.snapshots.size() >= this.compactionSize ) {
+            this.compact();
+        }
+
+        for ( var listener : this.listeners ) {
+            listener.snapshotAdded( previous, snapshot );
+        }
+
+        return true;
+    }
+
+    /**
+     * Store the snapshot and link it to the indexes
+     *
+     * @param store    store receiving the snapshot
+     * @param snapshot snapshot to store
+     */
+    private void append(HistoryStore store, TaskSnapshot snapshot) {
+        var position = store.size();
+
+        store.append( snapshot, this.latestByTask.get( snapshot.taskId() ) );
+        this.latestByStage.put( snapshot.stageId(), position );
+        this.latestByTask.put( snapshot.taskId(), position );
+    }
+
+    /**
+     * Drop the snapshots not retained by the policy. The latest snapshot of every stage and of every task is always
+     * kept, so the lookups give the same answers after the compaction. The snapshots kept are copied in a new store
+     * and the indexes rebuilt, the next compaction happens once the history doubles.
+     */
+    public void compact() {
+        if ( this.retention.keepsAll() ) {
+            return;
+        }
+
+        var size = this.snapshots.size();
+        var keep = new BitSet( size );
+
+        for ( int t = 0; t < this.taskCount; t++ ) {
+            int newer = 0;
+            int p = this.latestByTask.get( this.taskOrder[t] );
+            var snapshot = this.snapshots.get( p );
+
+            while ( p >= 0 ) {
+                var previous = this.snapshots.previousAt( p );
+                var previousSnapshot = previous >= 0 ? this.snapshots.get( previous ) : null;
+
+                if ( newer == 0 || this.retention.retains( snapshot, previousSnapshot, newer ) ) {
+                    keep.set( p );
+                }
+
+                p = previous;
+                snapshot = previousSnapshot;
+                newer++;
+            }
+        }
+
+        for ( int s = 0; s < this.stageCount; s++ ) {
+            keep.set( this.latestByStage.get( this.stageOrder[s] ) );
+        }
+
+        if ( keep.cardinality() < size ) {
+            var source = this.snapshots;
+            var target = source.empty();
+
+            this.latestByStage.clear();
+            this.latestByTask.clear();
+
+            for ( int p = keep.nextSetBit( 0 ); p >= 0; p = keep.nextSetBit( p + 1 ) ) {
+                this.append( target, source.get( p ) );
+            }
+
+            this.snapshots = target;
+            this.modCount++;
+            this.rewrites++;
+            source.discard();
+        }
+
+        this.compactionSize = Math.max( MIN_COMPACTION_SIZE, this.snapshots.size() * 2 );
+    }
+
+    /**
+     * Release the resources held by the store, the history stays readable
+     */
+    public void close() {
+        this.snapshots.close();
+    }
+
+    /**
+     * Release the storage of the history, it must not be read afterwards
+     */
+    public void discard() {
+        this.snapshots.discard();
+    }
+
+    /**
+     * Mark the stages as skipped without storing a snapshot for each of them. A skipped stage without snapshots shows a
+     * synthesized skip snapshot, both in the lookups and at the end of the history, until a snapshot is added for it.
+     *
+     * @param plan   plan of the stages, the same for every call
+     * @param stages indexes of the stages to skip
+     */
+    public void skip(IndexedFlowPlan<?, ?, ?> plan, BitSet stages) {
+        if ( this.skipPlan == null ) {
+            this.skipPlan = plan;
+        } else if ( this.skipPlan != plan ) {
+            throw new IllegalArgumentException( "skipped stages must belong to the same plan" );
+        }
+
+        for ( int s = stages.nextSetBit( 0 ); s >= 0; s = stages.nextSetBit( s + 1 ) ) {
+            if ( !this.skipped.get( s ) ) {
+                this.skipped.set( s );
+                this.skippedCount++;
+            }
+        }
+
+        this.skippedAt = LocalDate.now();
+        this.modCount++;
+        this.rewrites++;
+    }
+
+    private TaskSnapshot skippedSnapshot(int index) {
+        return new TaskSnapshot( 0, this.skipPlan.stageIdAt( index ), this.skippedAt, TaskStatus.SKIPPED,
+                TaskResult.NONE );
+    }
+
+    @Override
+    public TaskSnapshot get(int index) {
+        var stored = this.snapshots.size();
+
+        if ( index < stored ) {
+            return this.snapshots.get( index );
+        }
+
+        var k = index - stored;
+        Objects.checkIndex( k, this.skippedCount );
+
+        // reads leave the history untouched, so waves evaluated on other threads can share it
+        var bit = this.skipped.nextSetBit( 0 );
+
+        for ( int i = 0; i < k; i++ ) {
+            bit = this.skipped.nextSetBit( bit + 1 );
+        }
+
+        return this.skippedSnapshot( bit );
+    }
+
+    /**
+     * Iterate the stored snapshots and then the synthesized skips, walking the skipped set once
+     *
+     * @return
+     */
+    @Override
+    public Iterator<TaskSnapshot> iterator() {
+        return new Iterator<>() {
+
+            private final int stored = snapshots.size();
+            private int next = 0;
+            private int bit = skipped.nextSetBit( 0 );
+
+            @Override
+            public boolean hasNext() {
+                return this.next < this.stored || this.bit >= 0;
+            }
+
+            @Override
+            public TaskSnapshot next() {
+                if ( this.next < this.stored ) {
+                    return snapshots.get( this.next++ );
+                }
+
+                if ( this.bit < 0 ) {
+                    throw new NoSuchElementException();
+                }
+
+                var snapshot = skippedSnapshot( this.bit );
+                this.bit = skipped.nextSetBit( this.bit + 1 );
+                return snapshot;
+            }
+
+        };
+    }
+
+    /**
+     * Synthesized skips, in stage order
+     *
+     * @return a copy of the skips that follow the stored snapshots
+     */
+    List<TaskSnapshot> skippedSnapshots() {
+        var list = new ArrayList<TaskSnapshot>( this.skippedCount );
+
+        for ( int s = this.skipped.nextSetBit( 0 ); s >= 0; s = this.skipped.nextSetBit( s + 1 ) ) {
+            list.add( this.skippedSnapshot( s ) );
+        }
+
+        return list;
+    }
+
+    @Override
+    public int size() {
+        return this.snapshots.size() + this.skippedCount;
+    }
+
+    /**
+     * Number of snapshots actually stored, the synthesized skips follow them
+     *
+     * @return
+     */
+    int storedCount() {
+        return this.snapshots.size();
+    }
+
+    /**
+     * Number of changes to the history, appends included
+     *
+     * @return
+     */
+    public int revision() {
+        return this.modCount;
+    }
+
+    /**
+     * Number of changes other than appends, compactions and changes to the skipped stages. While it stays the same
+     * the stored snapshots only grow at the end and the synthesized skips are unchanged.
+     *
+     * @return
+     */
+    int rewrites() {
+        return this.rewrites;
+    }
+
+    /**
+     * Latest snapshot of the stage
+     *
+     * @param stageId id of the stage
+     * @return the latest snapshot or null if the stage has none
+     */
+    public TaskSnapshot latestOfStage(long stageId) {
+        var position = this.latestByStage.get( stageId );
+
+        if ( position >= 0 ) {
+            return this.snapshots.get( position );
+        }
+
+        if ( this.skippedCount > 0 ) {
+            var index = this.skipPlan.indexOf( stageId );
+
+            if ( index >= 0 && this.skipped.get( index ) ) {
+                return this.skippedSnapshot( index );
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Latest snapshot of the task
+     *
+     * @param taskId id of the task
+     * @return the latest snapshot or null if the task has none
+     */
+    public TaskSnapshot latestOfTask(long taskId) {
+        var position = this.latestByTask.get( taskId );
+        return position < 0 ? null : this.snapshots.get( position );
+    }
+
+    /**
+     * Snapshots of the task, following the chain of the task
+     *
+     * @param taskId id of the task
+     * @return the snapshots of the task from the first to the latest
+     */
+    public List<TaskSnapshot> historyOfTask(long taskId) {
+        var list = new ArrayList<TaskSnapshot>();
+
+        for ( int p = this.latestByTask.get( taskId ); p >= 0; p = this.snapshots.previousAt( p ) ) {
+            list.add( this.snapshots.get( p ) );
+        }
+
+        Collections.reverse( list );
+        return list;
+    }
+
+    /**
+     * Latest snapshot of every task, in order of first appearance. The map is a read only view kept up to date by add.
+     *
+     * @return the live view
+     */
+    public Map<Long, TaskSnapshot> latestByTask() {
+        return this.latestView;
+    }
+
+    /**
+     * Check if the stage has a snapshot that is not a skip
+     *
+     * @param stageId id of the stage
+     * @return true if a task was related to the stage
+     */
+    public boolean hasRelatedTask(long stageId) {
+        return this.relatedStages.containsKey( stageId );
+    }
+
+    /**
+     * Read only view over the latest snapshot of every task
+     */
+    private final class LatestByTask extends AbstractMap<Long, TaskSnapshot> {
+
+        private final Set<Map.Entry<Long, TaskSnapshot>> entries = new AbstractSet<>() {
+
+            @Override
+            public Iterator<Map.Entry<Long, TaskSnapshot>> iterator() {
+                return new Iterator<>() {
+
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return this.next < taskCount;
+                    }
+
+                    @Override
+                    public Map.Entry<Long, TaskSnapshot> next() {
+                        if ( !this.hasNext() ) {
+                            throw new NoSuchElementException();
+                        }
+
+                        var taskId = taskOrder[this.next++];
+                        return Map.entry( taskId, latestOfTask( taskId ) );
+                    }
+
+                };
+            }
+
+            @Override
+            public int size() {
+                return taskCount;
+            }
+
+        };
+
+        @Override
+        public Set<Map.Entry<Long, TaskSnapshot>> entrySet() {
+            return this.entries;
+        }
+
+        @Override
+        public int size() {
+            return taskCount;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof Long taskId && IndexedHistory.this.latestByTask.containsKey( taskId );
+        }
+
+        @Override
+        public TaskSnapshot get(Object key) {
+            return key instanceof Long taskId ? latestOfTask( taskId ) : null;
+        }
+
+    }
+
+}
@@ -0,0 +1,42 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Build a link from its stored fields, used by plans that are not backed by link objects
+ *
+ * @author Alessio
+ * @param <L> Link type
+ */
+@FunctionalInterface
+public interface LinkFactory<L extends Link> {
+
+    /**
+     * Build a link
+     *
+     * @param from  id of the source stage
+     * @param to    id of the target stage
+     * @param delay delay of the link
+     * @return the link
+     */
+    public L link(long from, long to, Delay delay);
+
+}
@@ -0,0 +1,784 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Indexed plan that can be edited while a scheduler runs on it. Until the first edit every query is forwarded to the
+ * base plan, which can be shared; the first edit copies the indexes once and from then on every edit updates them
+ * incrementally: sequence numbers are repaired only in the affected region (Pearce and Kelly dynamic topological
+ * order), backward links are classified by searching only that region and the memoized reachable sets are extended or
+ * dropped instead of recomputed. Every backward link remembers the forward links of the loop it closes, so removing a
+ * link only checks again the backward links whose loop went through it.
+ * <p>
+ * Removed stages and links keep their index, so indexes held by the waves stay valid. Edits are not synchronized, they
+ * must happen on the thread running the scheduler between two updates.
+ *
+ * @author Alessio
+ * @param <E> Enumeration of block ids
+ * @param <S> FlowStage type
+ * @param <L> Link type
+ */
+public final class LiveFlowPlan<E extends Enum<E>, S extends FlowStage<E>, L extends Link>
+        implements IndexedFlowPlan<E, S, L> {
+
+    private static final int[] NO_LINKS = new int[0];
+
+    private IndexedFlowPlan<E, S, L> base;
+
+    private String title;
+    private List<S> stages;
+    private List<L> links;
+    private LongIntMap indexById;
+    private int[] linkFrom;
+    private int[] linkTo;
+    private int[][] outgoings;
+    private int[] outgoingCounts;
+    private int[][] incomings;
+    private int[] incomingCounts;
+    private int[] sequence;
+    private int[] order;
+    private BitSet backward;
+    private BitSet removedStages;
+    private BitSet removedLinks;
+    private int[] startSet;
+    private ReachabilityMemo reachability;
+    private int[][] loops;
+    private int[][] loopsThrough;
+    private int[] loopsThroughCounts;
+    private BitSet unindexedLoops;
+    private List<Long>[] dependencies;
+    private Incomings[] incomingViews;
+
+    /**
+     * Wrap a plan, nothing is copied until the first edit
+     *
+     * @param base plan to start from
+     */
+    public LiveFlowPlan(IndexedFlowPlan<E, S, L> base) {
+        this.base = base;
+    }
+
+    /**
+     * Check if the plan was edited
+     *
+     * @return true if the plan no longer forwards to its base
+     */
+    public boolean isEdited() {
+        return this.base == null;
+    }
+
+    /**
+     * Copy the base indexes into editable structures. The loops of the backward links of the base are found on the
+     * first removal of a forward link.
+     */
+    @SuppressWarnings("unchecked")
+    private void thaw() {
+        if ( this.base == null ) {
+            return;
+        }
+
+        var plan = this.base;
+        var n = plan.stageCount();
+        var m = plan.linkCount();
+
+        this.title = plan.title();
+        this.stages = new ArrayList<>( n );
+        this.links = new ArrayList<>( m );
+        this.indexById = new LongIntMap( n );
+        this.linkFrom = new int[Math.max( m, 4 )];
+        this.linkTo = new int[Math.max( m, 4 )];
+        this.outgoings = new int[Math.max( n, 4 )][];
+        this.outgoingCounts = new int[Math.max( n, 4 )];
+        this.incomings = new int[Math.max( n, 4 )][];
+        this.incomingCounts = new int[Math.max( n, 4 )];
+        this.sequence = new int[Math.max( n, 4 )];
+        this.order = new int[Math.max( n, 4 )];
+        this.backward = new BitSet( m );
+        this.removedStages = new BitSet( n );
+        this.removedLinks = new BitSet( m );
+        this.startSet = plan.startIndexes();
+        this.reachability = new ReachabilityMemo();
+        this.loops = new int[Math.max( m, 4 )][];
+        this.loopsThrough = new int[Math.max( m, 4 )][];
+        this.loopsThroughCounts = new int[Math.max( m, 4 )];
+        this.unindexedLoops = new BitSet( m );
+        this.dependencies = ( List<Long>[] ) new List<?>[Math.max( n, 4 )];
+        this.incomingViews = new LiveFlowPlan.Incomings[Math.max( n, 4 )];
+
+        for ( int s = 0; s < n; s++ ) {
+            this.stages.add( plan.stageAt( s ) );
+            this.indexById.put( plan.stageIdAt( s ), s );
+            this.sequence[s] = plan.sequenceOf( s );
+            this.order[s] = plan.stageAtSequence( s );
+
+            this.outgoingCounts[s] = plan.outgoingCount( s );
+            this.outgoings[s] = new int[this.outgoingCounts[s]];
+            for ( int k = 0; k < this.outgoingCounts[s]; k++ ) {
+                this.outgoings[s][k] = plan.outgoingAt( s, k );
+            }
+
+            this.incomingCounts[s] = plan.incomingCount( s );
+            this.incomings[s] = new int[this.incomingCounts[s]];
+            for ( int k = 0; k < this.incomingCounts[s]; k++ ) {
+                this.incomings[s][k] = plan.incomingAt( s, k );
+            }
+        }
+
+        for ( int l = 0; l < m; l++ ) {
+            this.links.add( plan.linkAt( l ) );
+            this.linkFrom[l] = plan.linkFrom( l );
+            this.linkTo[l] = plan.linkTo( l );
+
+            this.loopsThrough[l] = NO_LINKS;
+
+            if ( plan.isBackward( l ) ) {
+                this.backward.set( l );
+
+                if ( this.linkFrom[l] != this.linkTo[l] ) {
+                    this.unindexedLoops.set( l );
+                }
+            }
+        }
+
+        this.base = null;
+    }
+
+    /**
+     * Add a stage, the stage has no links and comes after every other stage in the sequence
+     *
+     * @param stage stage to add
+     * @return index of the new stage
+     */
+    public int addStage(S stage) {
+        this.thaw();
+
+        if ( this.indexById.containsKey( stage.stageId() ) ) {
+            throw new RuntimeException( "duplicated stage id " + stage.stageId() + " in plan " + this.title );
+        }
+
+        var index = this.stages.size();
+
+        if ( index == this.sequence.length ) {
+            var capacity = index * 2;
+            this.outgoings = Arrays.copyOf( this.outgoings, capacity );
+            this.outgoingCounts = Arrays.copyOf( this.outgoingCounts, capacity );
+            this.incomings = Arrays.copyOf( this.incomings, capacity );
+            this.incomingCounts = Arrays.copyOf( this.incomingCounts, capacity );
+            this.sequence = Arrays.copyOf( this.sequence, capacity );
+            this.order = Arrays.copyOf( this.order, capacity );
+            this.dependencies = Arrays.copyOf( this.dependencies, capacity );
+            this.incomingViews = Arrays.copyOf( this.incomingViews, capacity );
+        }
+
+        this.stages.add( stage );
+        this.indexById.put( stage.stageId(), index );
+        this.outgoings[index] = NO_LINKS;
+        this.incomings[index] = NO_LINKS;
+        this.sequence[index] = index;
+        this.order[index] = index;
+
+        return index;
+    }
+
+    /**
+     * Remove a stage and all of its links
+     *
+     * @param stageId id of the stage
+     * @return true if the stage was part of the plan
+     */
+    public boolean removeStage(long stageId) {
+        this.thaw();
+
+        var index = this.indexById.get( stageId );
+
+        if ( index < 0 ) {
+            return false;
+        }
+
+        while ( this.outgoingCounts[index] > 0 ) {
+            this.removeLinkAt( this.outgoings[index][this.outgoingCounts[index] - 1] );
+        }
+
+        while ( this.incomingCounts[index] > 0 ) {
+            this.removeLinkAt( this.incomings[index][this.incomingCounts[index] - 1] );
+        }
+
+        this.indexById.remove( stageId );
+        this.removedStages.set( index );
+
+        int k = 0;
+        for ( var s : this.startSet ) {
+            if ( s != index ) {
+                this.startSet[k++] = s;
+            }
+        }
+        this.startSet = Arrays.copyOf( this.startSet, k );
+
+        return true;
+    }
+
+    /**
+     * Add a link between two stages of the plan
+     *
+     * @param link link to add
+     * @return index of the new link
+     */
+    public int addLink(L link) {
+        this.thaw();
+
+        var from = this.resolve( link.from() );
+        var to = this.resolve( link.to() );
+        var index = this.links.size();
+
+        if ( index == this.linkFrom.length ) {
+            var capacity = index * 2;
+            this.linkFrom = Arrays.copyOf( this.linkFrom, capacity );
+            this.linkTo = Arrays.copyOf( this.linkTo, capacity );
+            this.loops = Arrays.copyOf( this.loops, capacity );
+            this.loopsThrough = Arrays.copyOf( this.loopsThrough, capacity );
+            this.loopsThroughCounts = Arrays.copyOf( this.loopsThroughCounts, capacity );
+        }
+
+        this.links.add( link );
+        this.linkFrom[index] = from;
+        this.linkTo[index] = to;
+        this.loopsThrough[index] = NO_LINKS;
+
+        this.outgoings[from] = append( this.outgoings[from], this.outgoingCounts[from]++, index );
+        this.incomings[to] = append( this.incomings[to], this.incomingCounts[to]++, index );
+        this.dependencies[to] = null;
+        this.incomingViews[to] = null;
+
+        if ( from == to ) {
+            this.backward.set( index );
+        } else if ( this.sequence[from] > this.sequence[to] ) {
+            var loop = this.reorder( from, to );
+
+            if ( loop != null ) {
+                this.backward.set( index );
+                this.indexLoop( index, loop );
+            }
+        }
+
+        this.reachability.linkAdded( this, from, to );
+
+        return index;
+    }
+
+    /**
+     * Remove the first link equal to the specified one
+     *
+     * @param link link to remove
+     * @return true if a link was removed
+     */
+    public boolean removeLink(L link) {
+        this.thaw();
+
+        var from = this.indexById.get( link.from() );
+
+        if ( from < 0 ) {
+            return false;
+        }
+
+        for ( int k = 0; k < this.outgoingCounts[from]; k++ ) {
+            var index = this.outgoings[from][k];
+
+            if ( this.links.get( index ).equals( link ) ) {
+                this.removeLinkAt( index );
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void removeLinkAt(int index) {
+        var from = this.linkFrom[index];
+        var to = this.linkTo[index];
+
+        this.outgoingCounts[from] = remove( this.outgoings[from], this.outgoingCounts[from], index );
+        this.incomingCounts[to] = remove( this.incomings[to], this.incomingCounts[to], index );
+        this.removedLinks.set( index );
+        this.dependencies[to] = null;
+        this.incomingViews[to] = null;
+        this.reachability.linkRemoved( from );
+
+        if ( this.backward.get( index ) ) {
+            this.backward.clear( index );
+            this.unindexedLoops.clear( index );
+            this.unindexLoop( index );
+            return;
+        }
+
+        // only the loops that went through the removed link may be broken
+        var affected = this.unindexedLoops;
+
+        for ( int k = 0; k < this.loopsThroughCounts[index]; k++ ) {
+            affected.set( this.loopsThrough[index][k] );
+        }
+
+        this.unindexedLoops = new BitSet();
+
+        for ( int b = affected.nextSetBit( 0 ); b >= 0; b = affected.nextSetBit( b + 1 ) ) {
+            var f = this.linkFrom[b];
+            var t = this.linkTo[b];
+
+            this.unindexLoop( b );
+
+            var loop = this.sequence[f] < this.sequence[t] ? null : this.reorder( f, t );
+
+            if ( loop == null ) {
+                this.backward.clear( b );
+            } else {
+                this.indexLoop( b, loop );
+            }
+        }
+    }
+
+    /**
+     * Remember the forward links of the loop closed by a backward link
+     *
+     * @param link index of the backward link
+     * @param loop forward links from the target of the link to its source
+     */
+    private void indexLoop(int link, int[] loop) {
+        this.loops[link] = loop;
+
+        for ( var l : loop ) {
+            this.loopsThrough[l] = append( this.loopsThrough[l], this.loopsThroughCounts[l]++, link );
+        }
+    }
+
+    private void unindexLoop(int link) {
+        var loop = this.loops[link];
+
+        if ( loop == null ) {
+            return;
+        }
+
+        for ( var l : loop ) {
+            this.loopsThroughCounts[l] = remove( this.loopsThrough[l], this.loopsThroughCounts[l], link );
+        }
+
+        this.loops[link] = null;
+    }
+
+    private static int[] append(int[] list, int size, int value) {
+        if ( size == list.length ) {
+            list = Arrays.copyOf( list, Math.max( 4, size * 2 ) );
+        }
+
+        list[size] = value;
+        return list;
+    }
+
+    private static int remove(int[] list, int size, int value) {
+        for ( int k = 0; k < size; k++ ) {
+            if ( list[k] == value ) {
+                System.arraycopy( list, k + 1, list, k, size - k - 1 );
+                return size - 1;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Repair the sequence for a new forward link from -> to where to comes before from. Only the stages with a
+     * sequence number between the two endpoints are visited: the ones reachable from to and the ones reaching from,
+     * following forward links only. If from is reachable from to the link closes a loop and nothing changes.
+     *
+     * @param from index of the source stage
+     * @param to   index of the target stage
+     * @return the forward links of the loop closed by the link, or null if the sequence was repaired
+     */
+    private int[] reorder(int from, int to) {
+        var lower = this.sequence[to];
+        var upper = this.sequence[from];
+        var visited = new BitSet( this.stages.size() );
+        var reachedBy = new LongIntMap( 16 );
+
+        var forward = new int[upper - lower + 1];
+        int forwardCount = 0;
+        var stack = new int[upper - lower + 1];
+        int top = 0;
+
+        visited.set( to );
+        stack[top++] = to;
+
+        while ( top > 0 ) {
+            var cursor = stack[--top];
+            forward[forwardCount++] = cursor;
+
+            for ( int k = 0; k < this.outgoingCounts[cursor]; k++ ) {
+                var link = this.outgoings[cursor][k];
+                var follow = this.linkTo[link];
+
+                if ( follow == from && !this.backward.get( link ) ) {
+                    return this.loopTo( to, cursor, link, reachedBy );
+                }
+
+                if ( !this.backward.get( link ) && !visited.get( follow ) && this.sequence[follow] < upper ) {
+                    visited.set( follow );
+                    reachedBy.put( follow, link );
+                    stack[top++] = follow;
+                }
+            }
+        }
+
+        var backwards = new int[upper - lower + 1];
+        int backwardCount = 0;
+
+        visited.set( from );
+        stack[top++] = from;
+
+        while ( top > 0 ) {
+            var cursor = stack[--top];
+            backwards[backwardCount++] = cursor;
+
+            for ( int k = 0; k < this.incomingCounts[cursor]; k++ ) {
+                var link = this.incomings[cursor][k];
+                var follow = this.linkFrom[link];
+
+                if ( !this.backward.get( link ) && !visited.get( follow ) && this.sequence[follow] > lower ) {
+                    visited.set( follow );
+                    stack[top++] = follow;
+                }
+            }
+        }
+
+        var positions = new int[forwardCount + backwardCount];
+        var affected = new int[forwardCount + backwardCount];
+
+        this.sortBySequence( backwards, backwardCount );
+        this.sortBySequence( forward, forwardCount );
+
+        System.arraycopy( backwards, 0, affected, 0, backwardCount );
+        System.arraycopy( forward, 0, affected, backwardCount, forwardCount );
+
+        for ( int k = 0; k < affected.length; k++ ) {
+            positions[k] = this.sequence[affected[k]];
+        }
+
+        Arrays.sort( positions );
+
+        for ( int k = 0; k < affected.length; k++ ) {
+            this.sequence[affected[k]] = positions[k];
+            this.order[positions[k]] = affected[k];
+        }
+
+        return null;
+    }
+
+    /**
+     * Path of forward links found by reorder, walking back from the last link to the start of the search
+     *
+     * @param start     stage the search started from
+     * @param cursor    source stage of the last link
+     * @param last      link reaching the end of the loop
+     * @param reachedBy link that reached every visited stage
+     * @return the links of the path, last one first
+     */
+    private int[] loopTo(int start, int cursor, int last, LongIntMap reachedBy) {
+        int length = 1;
+
+        for ( int s = cursor; s != start; s = this.linkFrom[reachedBy.get( s )] ) {
+            length++;
+        }
+
+        var loop = new int[length];
+        int k = 0;
+
+        loop[k++] = last;
+
+        for ( int s = cursor; s != start; s = this.linkFrom[reachedBy.get( s )] ) {
+            loop[k++] = reachedBy.get( s );
+        }
+
+        return loop;
+    }
+
+    private void sortBySequence(int[] stages, int count) {
+        var keys = new long[count];
+
+        for ( int k = 0; k < count; k++ ) {
+            keys[k] = ( ( long ) this.sequence[stages[k]] << 32 ) | stages[k];
+        }
+
+        Arrays.sort( keys );
+
+        for ( int k = 0; k < count; k++ ) {
+            stages[k] = ( int ) keys[k];
+        }
+    }
+
+    private int resolve(long stageId) {
+        var index = this.indexOf( stageId );
+
+        if ( index < 0 ) {
+            throw new RuntimeException( "stage id " + stageId + " is not part of plan " + this.title() );
+        }
+
+        return index;
+    }
+
+    @Override
+    public int stageCount() {
+        return this.base != null ? this.base.stageCount() : this.stages.size();
+    }
+
+    @Override
+    public int linkCount() {
+        return this.base != null ? this.base.linkCount() : this.links.size();
+    }
+
+    @Override
+    public int indexOf(long stageId) {
+        return this.base != null ? this.base.indexOf( stageId ) : this.indexById.get( stageId );
+    }
+
+    @Override
+    public S stageAt(int index) {
+        return this.base != null ? this.base.stageAt( index ) : this.stages.get( index );
+    }
+
+    @Override
+    public long stageIdAt(int index) {
+        return this.base != null ? this.base.stageIdAt( index ) : this.stages.get( index ).stageId();
+    }
+
+    @Override
+    public L linkAt(int index) {
+        return this.base != null ? this.base.linkAt( index ) : this.links.get( index );
+    }
+
+    @Override
+    public int linkFrom(int link) {
+        return this.base != null ? this.base.linkFrom( link ) : this.linkFrom[link];
+    }
+
+    @Override
+    public int linkTo(int link) {
+        return this.base != null ? this.base.linkTo( link ) : this.linkTo[link];
+    }
+
+    @Override
+    public int outgoingCount(int stage) {
+        return this.base != null ? this.base.outgoingCount( stage ) : this.outgoingCounts[stage];
+    }
+
+    @Override
+    public int outgoingAt(int stage, int k) {
+        return this.base != null ? this.base.outgoingAt( stage, k ) : this.outgoings[stage][k];
+    }
+
+    @Override
+    public int incomingCount(int stage) {
+        return this.base != null ? this.base.incomingCount( stage ) : this.incomingCounts[stage];
+    }
+
+    @Override
+    public int incomingAt(int stage, int k) {
+        return this.base != null ? this.base.incomingAt( stage, k ) : this.incomings[stage][k];
+    }
+
+    @Override
+    public int sequenceOf(int stage) {
+        return this.base != null ? this.base.sequenceOf( stage ) : this.sequence[stage];
+    }
+
+    @Override
+    public int stageAtSequence(int sequence) {
+        return this.base != null ? this.base.stageAtSequence( sequence ) : this.order[sequence];
+    }
+
+    @Override
+    public List<Long> dependenciesOf(int stage) {
+        if ( this.base != null ) {
+            return this.base.dependenciesOf( stage );
+        }
+
+        var deps = this.dependencies[stage];
+
+        if ( deps == null ) {
+            deps = IndexedFlowPlan.super.dependenciesOf( stage );
+            this.dependencies[stage] = deps;
+        }
+
+        return deps;
+    }
+
+    @Override
+    public boolean isBackward(int link) {
+        return this.base != null ? this.base.isBackward( link ) : this.backward.get( link );
+    }
+
+    @Override
+    public boolean isRemoved(int stage) {
+        return this.base != null ? this.base.isRemoved( stage ) : this.removedStages.get( stage );
+    }
+
+    @Override
+    public int[] startIndexes() {
+        return this.base != null ? this.base.startIndexes() : this.startSet.clone();
+    }
+
+    @Override
+    public BitSet reachableFrom(int[] starts) {
+        return this.base != null ? this.base.reachableFrom( starts ) : this.reachability.reachableFrom( this, starts );
+    }
+
+    @Override
+    public String title() {
+        return this.base != null ? this.base.title() : this.title;
+    }
+
+    @Override
+    public Collection<S> stages() {
+        if ( this.base != null ) {
+            return this.base.stages();
+        }
+
+        var list = new ArrayList<S>( this.stages.size() );
+        for ( int s = this.removedStages.nextClearBit( 0 ); s < this.stages.size(); s = this.removedStages
+                .nextClearBit( s + 1 ) ) {
+            list.add( this.stages.get( s ) );
+        }
+
+        return list;
+    }
+
+    @Override
+    public Collection<L> links() {
+        if ( this.base != null ) {
+            return this.base.links();
+        }
+
+        var list = new ArrayList<L>( this.links.size() );
+        for ( int l = this.removedLinks.nextClearBit( 0 ); l < this.links.size(); l = this.removedLinks
+                .nextClearBit( l + 1 ) ) {
+            list.add( this.links.get( l ) );
+        }
+
+        return list;
+    }
+
+    @Override
+    public Collection<S> startSet() {
+        if ( this.base != null ) {
+            return this.base.startSet();
+        }
+
+        var list = new ArrayList<S>( this.startSet.length );
+        for ( var s : this.startSet ) {
+            list.add( this.stages.get( s ) );
+        }
+
+        return list;
+    }
+
+    @Override
+    public Collection<L> outgoings(S stage) {
+        if ( this.base != null ) {
+            return this.base.outgoings( stage );
+        }
+
+        var index = this.resolve( stage.stageId() );
+        var list = new ArrayList<L>( this.outgoingCounts[index] );
+        for ( int k = 0; k < this.outgoingCounts[index]; k++ ) {
+            list.add( this.links.get( this.outgoings[index][k] ) );
+        }
+
+        return list;
+    }
+
+    @Override
+    public Collection<L> incomings(S stage) {
+        if ( this.base != null ) {
+            return this.base.incomings( stage );
+        }
+
+        var index = this.resolve( stage.stageId() );
+        var view = this.incomingViews[index];
+
+        if ( view == null ) {
+            view = new Incomings( Arrays.copyOf( this.incomings[index], this.incomingCounts[index] ) );
+            this.incomingViews[index] = view;
+        }
+
+        return view;
+    }
+
+    @Override
+    public S stageById(long stageId) {
+        return this.stageAt( this.resolve( stageId ) );
+    }
+
+    @Override
+    public S followTo(L link) {
+        return this.stageById( link.to() );
+    }
+
+    @Override
+    public S followFrom(L link) {
+        return this.stageById( link.from() );
+    }
+
+    /**
+     * Links entering a stage as they were when the view was made, sorted by delay once. Views are dropped by the edits
+     * of the stage, the ones already handed out keep their links.
+     */
+    private final class Incomings extends AbstractList<L> implements RandomAccess, DelayOrder {
+
+        private final int[] linkIndexes;
+        private final int[] order;
+
+        private Incomings(int[] linkIndexes) {
+            this.linkIndexes = linkIndexes;
+            this.order = DelayOrder.sort( this );
+        }
+
+        @Override
+        public L get(int index) {
+            return links.get( this.linkIndexes[index] );
+        }
+
+        @Override
+        public int size() {
+            return this.linkIndexes.length;
+        }
+
+        @Override
+        public int[] delayOrder() {
+            return this.order;
+        }
+
+    }
+
+}
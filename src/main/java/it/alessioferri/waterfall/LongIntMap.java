@@ -0,0 +1,199 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from long keys to non negative int values, no boxing involved
+ *
+ * @author Alessio
+ */
+final class LongIntMap {
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    /**
+     * Create a map sized for the expected number of keys
+     *
+     * @param expected expected number of keys
+     */
+    LongIntMap(int expected) {
+        int capacity = 4;
+
+        while ( capacity < expected * 2 ) {
+            capacity <<= 1;
+        }
+
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.size = 0;
+    }
+
+    private static int slotOf(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return ( int ) ( h ^ ( h >>> 32 ) ) & mask;
+    }
+
+    /**
+     * Value mapped to the key
+     *
+     * @param key key to search
+     * @return the value or -1 if the key is missing
+     */
+    int get(long key) {
+        int mask = this.keys.length - 1;
+        int slot = slotOf( key, mask );
+
+        while ( this.values[slot] != 0 ) {
+            if ( this.keys[slot] == key ) {
+                return this.values[slot] - 1;
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Check if the key is mapped
+     *
+     * @param key key to search
+     * @return true if the key has a value
+     */
+    boolean containsKey(long key) {
+        return this.get( key ) >= 0;
+    }
+
+    /**
+     * Map the key to the value, replacing the previous one
+     *
+     * @param key   key to map
+     * @param value non negative value
+     */
+    void put(long key, int value) {
+        if ( value < 0 ) {
+            throw new IllegalArgumentException( "only non negative values can be mapped" );
+        }
+
+        if ( ( this.size + 1 ) * 2 > this.keys.length ) {
+            this.rehash( this.keys.length << 1 );
+        }
+
+        int mask = this.keys.length - 1;
+        int slot = slotOf( key, mask );
+
+        while ( this.values[slot] != 0 ) {
+            if ( this.keys[slot] == key ) {
+                this.values[slot] = value + 1;
+                return;
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+
+        this.keys[slot] = key;
+        this.values[slot] = value + 1;
+        this.size++;
+    }
+
+    /**
+     * Remove the key
+     *
+     * @param key key to remove
+     * @return the removed value or -1 if the key was missing
+     */
+    int remove(long key) {
+        int mask = this.keys.length - 1;
+        int slot = slotOf( key, mask );
+
+        while ( this.values[slot] != 0 && this.keys[slot] != key ) {
+            slot = ( slot + 1 ) & mask;
+        }
+
+        if ( this.values[slot] == 0 ) {
+            return -1;
+        }
+
+        var removed = this.values[slot] - 1;
+        this.size--;
+
+        // shift back the following entries of the probe sequence to close the hole
+        int hole = slot;
+        int next = ( slot + 1 ) & mask;
+
+        while ( this.values[next] != 0 ) {
+            int home = slotOf( this.keys[next], mask );
+            boolean movable = hole <= next ? home <= hole || home > next : home <= hole && home > next;
+
+            if ( movable ) {
+                this.keys[hole] = this.keys[next];
+                this.values[hole] = this.values[next];
+                hole = next;
+            }
+
+            next = ( next + 1 ) & mask;
+        }
+
+        this.values[hole] = 0;
+        return removed;
+    }
+
+    /**
+     * Number of mapped keys
+     *
+     * @return
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Remove all the keys
+     */
+    void clear() {
+        Arrays.fill( this.values, 0 );
+        this.size = 0;
+    }
+
+    private void rehash(int capacity) {
+        var oldKeys = this.keys;
+        var oldValues = this.values;
+
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+
+        int mask = capacity - 1;
+
+        for ( int i = 0; i < oldKeys.length; i++ ) {
+            if ( oldValues[i] != 0 ) {
+                int slot = slotOf( oldKeys[i], mask );
+                while ( this.values[slot] != 0 ) {
+                    slot = ( slot + 1 ) & mask;
+                }
+                this.keys[slot] = oldKeys[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+    }
+
+}
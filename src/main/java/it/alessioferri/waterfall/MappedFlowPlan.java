@@ -0,0 +1,325 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * Plan read directly from a file written by PlanFormat. The file is memory mapped and nothing is decoded at load time:
+ * stages and links are built through the factories only when they are requested, the sequence and the backward links
+ * are the ones computed when the plan was written.
+ *
+ * @author Alessio
+ * @param <E> Enumeration of block ids
+ * @param <S> FlowStage type
+ * @param <L> Link type
+ */
+public final class MappedFlowPlan<E extends Enum<E>, S extends FlowStage<E>, L extends Link>
+        implements IndexedFlowPlan<E, S, L> {
+
+    private static final DelayPolicy[] POLICIES = DelayPolicy.values();
+
+    private final ByteBuffer buffer;
+    private final PlanFormat.Layout layout;
+    private final String title;
+    private final E[] kinds;
+    private final StageFactory<E, S> stages;
+    private final LinkFactory<L> links;
+    private final ReachabilityMemo reachability;
+
+    private MappedFlowPlan(ByteBuffer buffer, PlanFormat.Layout layout, E[] kinds, StageFactory<E, S> stages,
+            LinkFactory<L> links) {
+        this.buffer = buffer;
+        this.layout = layout;
+        this.kinds = kinds;
+        this.stages = stages;
+        this.links = links;
+        this.reachability = new ReachabilityMemo();
+
+        var title = new byte[layout.titleLength()];
+        buffer.get( ( int ) layout.title(), title );
+        this.title = new String( title, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Map a plan file
+     *
+     * @param <E>    Enum type
+     * @param <S>    FlowStage with E as its' kind
+     * @param <L>    Link
+     * @param file   file written by PlanFormat.write
+     * @param kind   enum of the stage kinds, it must be the same used to write the file
+     * @param stages factory of the stages
+     * @param links  factory of the links
+     * @return the mapped plan
+     * @throws IOException if the file cannot be mapped
+     */
+    public static <E extends Enum<E>, S extends FlowStage<E>, L extends Link> MappedFlowPlan<E, S, L> open(Path file,
+            Class<E> kind, StageFactory<E, S> stages, LinkFactory<L> links) throws IOException {
+        try ( var channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+            if ( channel.size() < PlanFormat.HEADER_SIZE || channel.size() > Integer.MAX_VALUE ) {
+                throw new IOException( file + " is not a plan file" );
+            }
+
+            var buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+
+            if ( buffer.getInt( 0 ) != PlanFormat.MAGIC || buffer.getInt( 4 ) != PlanFormat.VERSION ) {
+                throw new IOException( file + " is not a plan file or has an unsupported version" );
+            }
+
+            var layout = new PlanFormat.Layout( buffer.getInt( 8 ), buffer.getInt( 12 ), buffer.getInt( 16 ),
+                    buffer.getInt( 20 ) );
+
+            if ( layout.size() != channel.size() ) {
+                throw new IOException( file + " is truncated" );
+            }
+
+            var kinds = kind.getEnumConstants();
+
+            if ( layout.stageCount() > 0 && buffer.getInt( 24 ) != kinds.length ) {
+                throw new IOException( file + " was written with a different " + kind.getSimpleName() );
+            }
+
+            return new MappedFlowPlan<>( buffer, layout, kinds, stages, links );
+        }
+    }
+
+    private int intAt(long section, int index) {
+        return this.buffer.getInt( ( int ) section + 4 * index );
+    }
+
+    @Override
+    public int stageCount() {
+        return this.layout.stageCount();
+    }
+
+    @Override
+    public int linkCount() {
+        return this.layout.linkCount();
+    }
+
+    @Override
+    public int indexOf(long stageId) {
+        int low = 0;
+        int high = this.stageCount() - 1;
+        var sorted = ( int ) this.layout.sortedIds();
+
+        while ( low <= high ) {
+            int mid = ( low + high ) >>> 1;
+            var id = this.buffer.getLong( sorted + 8 * mid );
+
+            if ( id < stageId ) {
+                low = mid + 1;
+            } else if ( id > stageId ) {
+                high = mid - 1;
+            } else {
+                return this.intAt( this.layout.sortedIndexes(), mid );
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public long stageIdAt(int index) {
+        return this.buffer.getLong( ( int ) this.layout.stageIds() + 8 * index );
+    }
+
+    @Override
+    public S stageAt(int index) {
+        var kind = this.kinds[this.buffer.get( ( int ) this.layout.kinds() + index ) & 0xFF];
+        var policy = POLICIES[this.buffer.get( ( int ) this.layout.policies() + index )];
+
+        return this.stages.stage( this.stageIdAt( index ), kind, policy );
+    }
+
+    @Override
+    public L linkAt(int index) {
+        var delays = ( int ) this.layout.delays() + 12 * index;
+        var delay = new DelayDate( this.buffer.getInt( delays ), this.buffer.getInt( delays + 4 ),
+                this.buffer.getInt( delays + 8 ) );
+
+        return this.links.link( this.stageIdAt( this.linkFrom( index ) ), this.stageIdAt( this.linkTo( index ) ),
+                delay );
+    }
+
+    @Override
+    public int linkFrom(int link) {
+        return this.intAt( this.layout.linkFrom(), link );
+    }
+
+    @Override
+    public int linkTo(int link) {
+        return this.intAt( this.layout.linkTo(), link );
+    }
+
+    @Override
+    public int outgoingCount(int stage) {
+        return this.intAt( this.layout.outOffsets(), stage + 1 ) - this.intAt( this.layout.outOffsets(), stage );
+    }
+
+    @Override
+    public int outgoingAt(int stage, int k) {
+        return this.intAt( this.layout.outLinks(), this.intAt( this.layout.outOffsets(), stage ) + k );
+    }
+
+    @Override
+    public int incomingCount(int stage) {
+        return this.intAt( this.layout.inOffsets(), stage + 1 ) - this.intAt( this.layout.inOffsets(), stage );
+    }
+
+    @Override
+    public int incomingAt(int stage, int k) {
+        return this.intAt( this.layout.inLinks(), this.intAt( this.layout.inOffsets(), stage ) + k );
+    }
+
+    @Override
+    public int sequenceOf(int stage) {
+        return this.intAt( this.layout.sequence(), stage );
+    }
+
+    @Override
+    public int stageAtSequence(int sequence) {
+        return this.intAt( this.layout.order(), sequence );
+    }
+
+    @Override
+    public boolean isBackward(int link) {
+        var word = this.buffer.getLong( ( int ) this.layout.backward() + 8 * ( link >>> 6 ) );
+        return ( word & ( 1L << ( link & 63 ) ) ) != 0;
+    }
+
+    @Override
+    public int[] startIndexes() {
+        var starts = new int[this.layout.startCount()];
+
+        for ( int k = 0; k < starts.length; k++ ) {
+            starts[k] = this.intAt( this.layout.startSet(), k );
+        }
+
+        return starts;
+    }
+
+    @Override
+    public BitSet reachableFrom(int[] starts) {
+        return this.reachability.reachableFrom( this, starts );
+    }
+
+    @Override
+    public String title() {
+        return this.title;
+    }
+
+    @Override
+    public Collection<S> stages() {
+        return new IndexView<>( this.stageCount(), this::stageAt );
+    }
+
+    @Override
+    public Collection<L> links() {
+        return new IndexView<>( this.linkCount(), this::linkAt );
+    }
+
+    @Override
+    public Collection<S> startSet() {
+        var starts = this.startIndexes();
+        return new IndexView<>( starts.length, k -> this.stageAt( starts[k] ) );
+    }
+
+    @Override
+    public Collection<L> outgoings(S stage) {
+        var index = this.resolve( stage.stageId() );
+        return new IndexView<>( this.outgoingCount( index ), k -> this.linkAt( this.outgoingAt( index, k ) ) );
+    }
+
+    @Override
+    public Collection<L> incomings(S stage) {
+        var index = this.resolve( stage.stageId() );
+        return new IndexView<>( this.incomingCount( index ), k -> this.linkAt( this.incomingAt( index, k ) ) );
+    }
+
+    @Override
+    public S stageById(long stageId) {
+        return this.stageAt( this.resolve( stageId ) );
+    }
+
+    @Override
+    public S followTo(L link) {
+        return this.stageById( link.to() );
+    }
+
+    @Override
+    public S followFrom(L link) {
+        return this.stageById( link.from() );
+    }
+
+    private int resolve(long stageId) {
+        var index = this.indexOf( stageId );
+
+        if ( index < 0 ) {
+            throw new RuntimeException( "stage id " + stageId + " is not part of plan " + this.title );
+        }
+
+        return index;
+    }
+
+    private interface Element<T> {
+        T at(int index);
+    }
+
+    /**
+     * Read only list materializing the elements on access
+     */
+    private static final class IndexView<T> extends AbstractList<T> implements RandomAccess {
+
+        private final int size;
+        private final Element<T> element;
+
+        private IndexView(int size, Element<T> element) {
+            this.size = size;
+            this.element = element;
+        }
+
+        @Override
+        public T get(int index) {
+            if ( index < 0 || index >= this.size ) {
+                throw new IndexOutOfBoundsException( index );
+            }
+            return this.element.at( index );
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+    }
+
+}
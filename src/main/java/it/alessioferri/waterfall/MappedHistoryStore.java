@@ -0,0 +1,293 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * HistoryStore appending fixed width records to a memory mapped file, the snapshots stay off heap. The file starts
+ * with a header (magic, version, number of records) followed by records of 32 bytes: task id, stage id, epoch day,
+ * previous snapshot of the task, status and result. The file is mapped in segments as it grows.
+ * <p>
+ * The file is kept once the wave is done with it: close releases the channel and the store stays readable through the
+ * mappings, open reads the file back after a restart. The files are deleted by discard, called on the files replaced by
+ * a compaction and by SchedulerDefault.discard for the histories used as scratch space.
+ *
+ * @author Alessio
+ */
+public final class MappedHistoryStore implements HistoryStore {
+
+    static final int MAGIC = 0x57464853;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 32;
+
+    /**
+     * Records mapped at once when the file grows
+     */
+    private static final int SEGMENT_RECORDS = 1 << 15;
+
+    private static final TaskStatus[] STATUSES = TaskStatus.values();
+    private static final TaskResult[] RESULTS = TaskResult.values();
+
+    private final Path file;
+    private FileChannel channel;
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> segments;
+    private int size;
+
+    private MappedHistoryStore(Path file, FileChannel channel, MappedByteBuffer header, int size) {
+        this.file = file;
+        this.channel = channel;
+        this.header = header;
+        this.segments = new ArrayList<>();
+        this.size = size;
+    }
+
+    /**
+     * Create a store writing to the file, the file is truncated
+     *
+     * @param file file of the history
+     * @return an empty store
+     * @throws IOException if the file cannot be mapped
+     */
+    public static MappedHistoryStore create(Path file) throws IOException {
+        var channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+
+        try {
+            var header = channel.map( FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE );
+            header.putInt( 0, MAGIC );
+            header.putInt( 4, VERSION );
+            header.putInt( 8, 0 );
+
+            return new MappedHistoryStore( file, channel, header, 0 );
+        } catch ( IOException e ) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a history written by a previous store, new snapshots are appended after the ones in the file
+     *
+     * @param file file of the history
+     * @return a store with the snapshots of the file
+     * @throws IOException if the file cannot be mapped or it is not a valid history
+     */
+    public static MappedHistoryStore open(Path file) throws IOException {
+        var channel = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE );
+
+        try {
+            if ( channel.size() < HEADER_SIZE ) {
+                throw new IOException( file + " is not a history file, the header is missing" );
+            }
+
+            var header = channel.map( FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE );
+
+            if ( header.getInt( 0 ) != MAGIC ) {
+                throw new IOException( file + " is not a history file, wrong magic number" );
+            }
+
+            if ( header.getInt( 4 ) != VERSION ) {
+                throw new IOException( "unsupported version " + header.getInt( 4 ) + " of the history file " + file );
+            }
+
+            var size = header.getInt( 8 );
+
+            if ( size < 0 || HEADER_SIZE + ( long ) size * RECORD_SIZE > channel.size() ) {
+                throw new IOException( "the history file " + file + " is truncated, " + size + " records expected" );
+            }
+
+            var store = new MappedHistoryStore( file, channel, header, size );
+
+            for ( int segment = 0; segment * SEGMENT_RECORDS < size; segment++ ) {
+                store.mapSegment( segment );
+            }
+
+            return store;
+        } catch ( IOException | RuntimeException e ) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Factory of stores each with its own new file in the directory, to be used in a SchedulerConfig. The files are
+     * named wave-*.history and are left in the directory once the scheduler closes them
+     *
+     * @param directory directory of the history files
+     * @return the factory
+     */
+    public static Supplier<HistoryStore> inDirectory(Path directory) {
+        return () -> createIn( directory );
+    }
+
+    private static MappedHistoryStore createIn(Path directory) {
+        try {
+            return create( Files.createTempFile( directory, "wave-", ".history" ) );
+        } catch ( IOException e ) {
+            throw new UncheckedIOException( "cannot create a history file in " + directory, e );
+        }
+    }
+
+    /**
+     * File of the history
+     *
+     * @return
+     */
+    public Path file() {
+        return this.file;
+    }
+
+    /**
+     * Flush the records to the storage device
+     */
+    public void force() {
+        this.header.force();
+
+        for ( var segment : this.segments ) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public HistoryStore empty() {
+        var parent = this.file.toAbsolutePath().getParent();
+        return createIn( parent );
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void append(TaskSnapshot snapshot, int previous) {
+        var epochDay = Objects.requireNonNull( snapshot.takenAt(), "snapshot date is required" ).toEpochDay();
+
+        if ( epochDay != ( int ) epochDay ) {
+            throw new IllegalArgumentException( "snapshot date " + snapshot.takenAt() + " is out of range" );
+        }
+
+        var segment = this.size / SEGMENT_RECORDS;
+
+        if ( segment == this.segments.size() ) {
+            this.mapSegment( segment );
+        }
+
+        var buffer = this.segments.get( segment );
+        var offset = ( this.size % SEGMENT_RECORDS ) * RECORD_SIZE;
+
+        buffer.putLong( offset, snapshot.taskId() );
+        buffer.putLong( offset + 8, snapshot.stageId() );
+        buffer.putInt( offset + 16, ( int ) epochDay );
+        buffer.putInt( offset + 20, previous );
+        buffer.put( offset + 24, ( byte ) snapshot.status().ordinal() );
+        buffer.put( offset + 25, ( byte ) snapshot.result().ordinal() );
+
+        this.size++;
+        this.header.putInt( 8, this.size );
+    }
+
+    private void mapSegment(int segment) {
+        var position = HEADER_SIZE + ( long ) segment * SEGMENT_RECORDS * RECORD_SIZE;
+
+        try {
+            if ( this.channel.isOpen() ) {
+                this.segments.add( this.channel.map( FileChannel.MapMode.READ_WRITE, position,
+                        ( long ) SEGMENT_RECORDS * RECORD_SIZE ) );
+                return;
+            }
+
+            // a closed store that grows again opens the file just to map the new segment
+            try ( var channel = FileChannel.open( this.file, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+                this.segments.add( channel.map( FileChannel.MapMode.READ_WRITE, position,
+                        ( long ) SEGMENT_RECORDS * RECORD_SIZE ) );
+            }
+        } catch ( IOException e ) {
+            throw new UncheckedIOException( "cannot extend the history file " + this.file, e );
+        }
+    }
+
+    @Override
+    public TaskSnapshot get(int position) {
+        Objects.checkIndex( position, this.size );
+
+        var buffer = this.segments.get( position / SEGMENT_RECORDS );
+        var offset = ( position % SEGMENT_RECORDS ) * RECORD_SIZE;
+
+        return new TaskSnapshot( buffer.getLong( offset ), buffer.getLong( offset + 8 ),
+                LocalDate.ofEpochDay( buffer.getInt( offset + 16 ) ), STATUSES[buffer.get( offset + 24 )],
+                RESULTS[buffer.get( offset + 25 )] );
+    }
+
+    @Override
+    public int previousAt(int position) {
+        Objects.checkIndex( position, this.size );
+
+        var buffer = this.segments.get( position / SEGMENT_RECORDS );
+        return buffer.getInt( ( position % SEGMENT_RECORDS ) * RECORD_SIZE + 20 );
+    }
+
+    /**
+     * Flush the records and close the file, the mappings keep the records readable
+     */
+    @Override
+    public void close() {
+        if ( !this.channel.isOpen() ) {
+            return;
+        }
+
+        this.force();
+
+        try {
+            this.channel.close();
+        } catch ( IOException e ) {
+            throw new UncheckedIOException( "cannot close the history file " + this.file, e );
+        }
+    }
+
+    /**
+     * Close the file and delete it
+     */
+    @Override
+    public void discard() {
+        try {
+            this.channel.close();
+            Files.deleteIfExists( this.file );
+        } catch ( IOException e ) {
+            throw new UncheckedIOException( "cannot delete the history file " + this.file, e );
+        }
+    }
+
+}
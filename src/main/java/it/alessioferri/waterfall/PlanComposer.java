@@ -0,0 +1,63 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Optional;
+
+/**
+ * Rules used by a CompositeFlowPlan to find the stages standing for a sub plan and to copy stages and links with new
+ * ids once the sub plans are flattened
+ *
+ * @author Alessio
+ * @param <E> Enumeration of block ids
+ * @param <S> FlowStage type
+ * @param <L> Link type
+ */
+public interface PlanComposer<E extends Enum<E>, S extends FlowStage<E>, L extends Link> {
+
+    /**
+     * Plan referenced by the stage
+     *
+     * @param stage stage of a plan
+     * @return the sub plan that replaces the stage, or empty if the stage is a plain stage
+     */
+    public Optional<? extends FlowPlan<E, S, L>> subPlanOf(S stage);
+
+    /**
+     * Copy of a sub plan stage with a new id
+     *
+     * @param stage   stage of a sub plan
+     * @param stageId id of the stage in the flattened plan
+     * @return the stage to be used in the flattened plan
+     */
+    public S remap(S stage, long stageId);
+
+    /**
+     * Copy of a link with new endpoints
+     *
+     * @param link link of a plan
+     * @param from id of the source stage in the flattened plan
+     * @param to   id of the target stage in the flattened plan
+     * @return the link to be used in the flattened plan
+     */
+    public L remap(L link, long from, long to);
+
+}
@@ -0,0 +1,253 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Binary format of a plan. All the arrays are stored one after the other behind a fixed header, longs first so every
+ * section stays aligned to its element size:
+ *
+ * <pre>
+ * header   magic, version, stages, links, start stages, title bytes, kinds in E, reserved (8 ints)
+ * long[]   stage ids, stage ids sorted, backward link bits
+ * int[]    stage index of the sorted ids, link from, link to, link delays (years, months, days)
+ * int[]    outgoing offsets, outgoing links, incoming offsets, incoming links, sequence, order, start set
+ * byte[]   kind ordinals, delay policy ordinals, UTF-8 title
+ * </pre>
+ *
+ * @author Alessio
+ */
+public final class PlanFormat {
+
+    static final int MAGIC = 0x5746504C;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+
+    private PlanFormat() {
+    }
+
+    /**
+     * Offsets of the sections for a plan of the given size
+     */
+    record Layout(int stageCount, int linkCount, int startCount, int titleLength) {
+
+        long stageIds() {
+            return HEADER_SIZE;
+        }
+
+        long sortedIds() {
+            return this.stageIds() + 8L * this.stageCount;
+        }
+
+        long backward() {
+            return this.sortedIds() + 8L * this.stageCount;
+        }
+
+        long sortedIndexes() {
+            return this.backward() + 8L * ( ( this.linkCount + 63 ) / 64 );
+        }
+
+        long linkFrom() {
+            return this.sortedIndexes() + 4L * this.stageCount;
+        }
+
+        long linkTo() {
+            return this.linkFrom() + 4L * this.linkCount;
+        }
+
+        long delays() {
+            return this.linkTo() + 4L * this.linkCount;
+        }
+
+        long outOffsets() {
+            return this.delays() + 12L * this.linkCount;
+        }
+
+        long outLinks() {
+            return this.outOffsets() + 4L * ( this.stageCount + 1 );
+        }
+
+        long inOffsets() {
+            return this.outLinks() + 4L * this.linkCount;
+        }
+
+        long inLinks() {
+            return this.inOffsets() + 4L * ( this.stageCount + 1 );
+        }
+
+        long sequence() {
+            return this.inLinks() + 4L * this.linkCount;
+        }
+
+        long order() {
+            return this.sequence() + 4L * this.stageCount;
+        }
+
+        long startSet() {
+            return this.order() + 4L * this.stageCount;
+        }
+
+        long kinds() {
+            return this.startSet() + 4L * this.startCount;
+        }
+
+        long policies() {
+            return this.kinds() + this.stageCount;
+        }
+
+        long title() {
+            return this.policies() + this.stageCount;
+        }
+
+        long size() {
+            return this.title() + this.titleLength;
+        }
+
+    }
+
+    /**
+     * Write the plan to the file, replacing it. Only DelayDate link delays can be stored.
+     *
+     * @param <E>  Enum type
+     * @param <S>  FlowStage with E as its' kind
+     * @param <L>  Link
+     * @param plan plan to be stored
+     * @param file target file
+     * @throws IOException if the file cannot be written
+     */
+    public static <E extends Enum<E>, S extends FlowStage<E>, L extends Link> void write(FlowPlan<E, S, L> plan,
+            Path file) throws IOException {
+        IndexedFlowPlan<E, S, L> indexed = plan instanceof IndexedFlowPlan<E, S, L> i ? i
+                : CompiledFlowPlan.compile( plan );
+
+        var title = indexed.title().getBytes( StandardCharsets.UTF_8 );
+        var starts = indexed.startIndexes();
+        var n = indexed.stageCount();
+        var m = indexed.linkCount();
+        var layout = new Layout( n, m, starts.length, title.length );
+
+        if ( layout.size() > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( "plan " + indexed.title() + " is too big to be mapped" );
+        }
+
+        var kindCount = n == 0 ? 0 : indexed.stageAt( 0 ).kind().getDeclaringClass().getEnumConstants().length;
+
+        if ( kindCount > 256 ) {
+            throw new IllegalArgumentException( "cannot store more than 256 kinds of stages" );
+        }
+
+        try ( var channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            var buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, layout.size() );
+
+            buffer.putInt( 0, MAGIC );
+            buffer.putInt( 4, VERSION );
+            buffer.putInt( 8, n );
+            buffer.putInt( 12, m );
+            buffer.putInt( 16, starts.length );
+            buffer.putInt( 20, title.length );
+            buffer.putInt( 24, kindCount );
+
+            var ids = new long[n];
+            for ( int s = 0; s < n; s++ ) {
+                var stage = indexed.stageAt( s );
+                ids[s] = stage.stageId();
+
+                buffer.putLong( ( int ) layout.stageIds() + 8 * s, ids[s] );
+                buffer.putInt( ( int ) layout.sequence() + 4 * s, indexed.sequenceOf( s ) );
+                buffer.putInt( ( int ) layout.order() + 4 * s, indexed.stageAtSequence( s ) );
+                buffer.put( ( int ) layout.kinds() + s, ( byte ) stage.kind().ordinal() );
+                buffer.put( ( int ) layout.policies() + s, ( byte ) stage.delayPolicy().ordinal() );
+            }
+
+            var sorted = ids.clone();
+            Arrays.sort( sorted );
+            for ( int k = 0; k < n; k++ ) {
+                buffer.putLong( ( int ) layout.sortedIds() + 8 * k, sorted[k] );
+                buffer.putInt( ( int ) layout.sortedIndexes() + 4 * k, indexed.indexOf( sorted[k] ) );
+            }
+
+            for ( int l = 0; l < m; l++ ) {
+                if ( !( indexed.linkAt( l ).delay() instanceof DelayDate delay ) ) {
+                    throw new IllegalArgumentException( "only DelayDate delays can be stored, found "
+                            + indexed.linkAt( l ).delay() );
+                }
+
+                buffer.putInt( ( int ) layout.linkFrom() + 4 * l, indexed.linkFrom( l ) );
+                buffer.putInt( ( int ) layout.linkTo() + 4 * l, indexed.linkTo( l ) );
+                buffer.putInt( ( int ) layout.delays() + 12 * l, delay.years() );
+                buffer.putInt( ( int ) layout.delays() + 12 * l + 4, delay.months() );
+                buffer.putInt( ( int ) layout.delays() + 12 * l + 8, delay.days() );
+
+                if ( indexed.isBackward( l ) ) {
+                    var word = ( int ) layout.backward() + 8 * ( l >>> 6 );
+                    buffer.putLong( word, buffer.getLong( word ) | ( 1L << ( l & 63 ) ) );
+                }
+            }
+
+            writeAdjacency( buffer, layout.outOffsets(), layout.outLinks(), n, indexed::outgoingCount,
+                    indexed::outgoingAt );
+            writeAdjacency( buffer, layout.inOffsets(), layout.inLinks(), n, indexed::incomingCount,
+                    indexed::incomingAt );
+
+            for ( int k = 0; k < starts.length; k++ ) {
+                buffer.putInt( ( int ) layout.startSet() + 4 * k, starts[k] );
+            }
+
+            buffer.put( ( int ) layout.title(), title );
+            buffer.force();
+        }
+    }
+
+    private interface Degree {
+        int of(int stage);
+    }
+
+    private interface Adjacent {
+        int at(int stage, int k);
+    }
+
+    private static void writeAdjacency(ByteBuffer buffer, long offsets, long targets, int n, Degree degree,
+            Adjacent adjacent) {
+        int offset = 0;
+
+        for ( int s = 0; s < n; s++ ) {
+            buffer.putInt( ( int ) offsets + 4 * s, offset );
+
+            var count = degree.of( s );
+            for ( int k = 0; k < count; k++ ) {
+                buffer.putInt( ( int ) targets + 4 * ( offset + k ), adjacent.at( s, k ) );
+            }
+
+            offset += count;
+        }
+
+        buffer.putInt( ( int ) offsets + 4 * n, offset );
+    }
+
+}
@@ -0,0 +1,35 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Identity of a plan in the CompiledPlanCache. Two plans with the same key must have the same stages and links, a new
+ * version must be used whenever the plan changes.
+ *
+ * @author Alessio
+ */
+public record PlanKey(String identity, long version) {
+
+    public static PlanKey of(String identity, long version) {
+        return new PlanKey( identity, version );
+    }
+
+}
@@ -0,0 +1,186 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reachable sets of an IndexedFlowPlan memoized by start set, safe to share between threads
+ *
+ * @author Alessio
+ */
+final class ReachabilityMemo {
+
+    /**
+     * Upper bound of distinct start sets remembered
+     */
+    private static final int MAX_MEMOIZED_START_SETS = 1024;
+
+    private final Map<StartSetKey, BitSet> reachability;
+
+    ReachabilityMemo() {
+        this.reachability = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Set of the stages reachable from the start stages, start stages included
+     *
+     * @param plan   plan to explore
+     * @param starts indexes of the start stages
+     * @return the reachable set, shared and never to be modified
+     */
+    BitSet reachableFrom(IndexedFlowPlan<?, ?, ?> plan, int[] starts) {
+        var key = StartSetKey.of( starts );
+        var reachable = this.reachability.get( key );
+
+        if ( reachable != null ) {
+            return reachable;
+        }
+
+        reachable = markReachableSet( plan, key.indexes() );
+
+        if ( this.reachability.size() < MAX_MEMOIZED_START_SETS ) {
+            var previous = this.reachability.putIfAbsent( key, reachable );
+            if ( previous != null ) {
+                return previous;
+            }
+        }
+
+        return reachable;
+    }
+
+    /**
+     * Forget every memoized set
+     */
+    void clear() {
+        this.reachability.clear();
+    }
+
+    /**
+     * Extend the memoized sets after a link is added: every set reaching the source now reaches the target and all the
+     * stages after it. Sets are replaced, never modified, as they could still be in use.
+     *
+     * @param plan plan already containing the new link
+     * @param from index of the source stage
+     * @param to   index of the target stage
+     */
+    void linkAdded(IndexedFlowPlan<?, ?, ?> plan, int from, int to) {
+        this.reachability.replaceAll( (key, reachable) -> {
+            if ( !reachable.get( from ) || reachable.get( to ) ) {
+                return reachable;
+            }
+
+            var extended = ( BitSet ) reachable.clone();
+            mark( plan, extended, new int[] { to } );
+            return extended;
+        } );
+    }
+
+    /**
+     * Forget the memoized sets that could change after a link leaving the stage is removed
+     *
+     * @param from index of the source stage
+     */
+    void linkRemoved(int from) {
+        this.reachability.values().removeIf( reachable -> reachable.get( from ) );
+    }
+
+    /**
+     * Iterative depth first visit of the outgoing links
+     *
+     * @param plan   plan to explore
+     * @param starts indexes of the start stages
+     * @return the reachable set
+     */
+    static BitSet markReachableSet(IndexedFlowPlan<?, ?, ?> plan, int[] starts) {
+        var reachable = new BitSet( plan.stageCount() );
+        mark( plan, reachable, starts );
+        return reachable;
+    }
+
+    /**
+     * Add to the reachable set everything reachable from the starts, stopping at the stages already in the set
+     *
+     * @param plan      plan to explore
+     * @param reachable set to extend
+     * @param starts    indexes of the start stages
+     */
+    private static void mark(IndexedFlowPlan<?, ?, ?> plan, BitSet reachable, int[] starts) {
+        var stack = new int[plan.stageCount()];
+        int top = 0;
+
+        for ( var s : starts ) {
+            if ( !reachable.get( s ) ) {
+                reachable.set( s );
+                stack[top++] = s;
+            }
+        }
+
+        while ( top > 0 ) {
+            var cursor = stack[--top];
+            var outgoings = plan.outgoingCount( cursor );
+
+            for ( int k = 0; k < outgoings; k++ ) {
+                var follow = plan.linkTo( plan.outgoingAt( cursor, k ) );
+
+                if ( !reachable.get( follow ) ) {
+                    reachable.set( follow );
+                    stack[top++] = follow;
+                }
+            }
+        }
+    }
+
+    /**
+     * Signature of a start set: sorted and without duplicates
+     */
+    private record StartSetKey(int[] indexes) {
+
+        static StartSetKey of(int[] starts) {
+            var sorted = starts.clone();
+            Arrays.sort( sorted );
+
+            int n = 0;
+            for ( int i = 0; i < sorted.length; i++ ) {
+                if ( n == 0 || sorted[n - 1] != sorted[i] ) {
+                    sorted[n++] = sorted[i];
+                }
+            }
+
+            return new StartSetKey( Arrays.copyOf( sorted, n ) );
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StartSetKey other && Arrays.equals( this.indexes, other.indexes );
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode( this.indexes );
+        }
+
+    }
+
+}
@@ -0,0 +1,125 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.LocalDate;
+import java.time.Period;
+
+/**
+ * Choice of the snapshots kept when the history of a wave is compacted. The latest snapshot of every task and of every
+ * stage is kept whatever the policy says.
+ *
+ * @author Alessio
+ */
+@FunctionalInterface
+public interface RetentionPolicy {
+
+    /**
+     * Keep every snapshot, the history is never compacted
+     *
+     * @return the policy
+     */
+    public static RetentionPolicy keepAll() {
+        return KeepAll.INSTANCE;
+    }
+
+    /**
+     * Keep only the latest snapshot of every task
+     *
+     * @return the policy
+     */
+    public static RetentionPolicy latestOnly() {
+        return (snapshot, previous, newer) -> false;
+    }
+
+    /**
+     * Keep the snapshots that changed the status or the result of their task
+     *
+     * @return the policy
+     */
+    public static RetentionPolicy transitions() {
+        return (snapshot, previous, newer) -> previous == null || previous.status() != snapshot.status()
+                || previous.result() != snapshot.result();
+    }
+
+    /**
+     * Keep the last snapshots of every task
+     *
+     * @param count number of snapshots kept for each task
+     * @return the policy
+     */
+    public static RetentionPolicy lastPerTask(int count) {
+        if ( count <= 0 ) {
+            throw new IllegalArgumentException( "at least one snapshot per task must be kept" );
+        }
+
+        return (snapshot, previous, newer) -> newer < count;
+    }
+
+    /**
+     * Keep the snapshots taken recently
+     *
+     * @param age maximum age of the snapshots kept
+     * @return the policy
+     */
+    public static RetentionPolicy newerThan(Period age) {
+        return (snapshot, previous, newer) -> !snapshot.takenAt().isBefore( LocalDate.now().minus( age ) );
+    }
+
+    /**
+     * Check if the snapshot is kept
+     *
+     * @param snapshot snapshot to check
+     * @param previous previous snapshot of the same task, or null if it is the first one
+     * @param newer    number of snapshots of the same task taken after this one
+     * @return true if the snapshot is kept
+     */
+    public boolean retains(TaskSnapshot snapshot, TaskSnapshot previous, int newer);
+
+    /**
+     * Check if the policy keeps everything, so that compacting is useless
+     *
+     * @return
+     */
+    public default boolean keepsAll() {
+        return false;
+    }
+
+    /**
+     * Policy that keeps everything
+     */
+    enum KeepAll implements RetentionPolicy {
+
+        INSTANCE;
+
+        @Override
+        public boolean retains(TaskSnapshot snapshot, TaskSnapshot previous, int newer) {
+            return true;
+        }
+
+        @Override
+        public boolean keepsAll() {
+            return true;
+        }
+
+    }
+
+}
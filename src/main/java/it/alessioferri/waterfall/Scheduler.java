@@ -81,6 +81,34 @@ public interface Scheduler<E extends Enum<E>, S extends FlowStage<E>, L extends
      */
     public void pollSnapshotsUpdates();
 
+    /**
+     * Report a new snapshot of a task, instead of waiting for the next poll. The default applies it at once to the
+     * wave, schedulers that queue the updates apply them at the next update pass and accept them from any thread.
+     *
+     * @param waveId   id of the wave of the task
+     * @param snapshot new snapshot of the task
+     */
+    public default void onTaskUpdate(long waveId, TaskSnapshot snapshot) {
+        for ( var w : this.waves() ) {
+            if ( w.waveId() == waveId ) {
+                w.addSnapshot( snapshot );
+                return;
+            }
+        }
+
+        throw new IllegalArgumentException( "unknown wave id " + waveId );
+    }
+
+    /**
+     * Immutable view of the waves. The default takes a new copy on the calling thread, schedulers that publish their
+     * views return the one published after the last update, readable from any thread.
+     *
+     * @return the view of the scheduler
+     */
+    public default SchedulerView view() {
+        return SchedulerView.of( this );
+    }
+
     /**
      * Is complete
      *
@@ -0,0 +1,81 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Tuning of a SchedulerDefault
+ *
+ * @author Alessio
+ * @param historyStore    factory of the history store of every new wave
+ * @param retention       snapshots kept when the history of a wave is compacted
+ * @param pushUpdates     an update pass evaluates just the cursors whose snapshots changed since the previous one,
+ *                        instead of every cursor of the waves it visits
+ * @param parallelPool    pool updating the dirty waves concurrently, null to update them one at a time on the calling
+ *                        thread. Callbacks must be thread safe when a pool is set.
+ * @param splitFrontierAt cursors of a branch when the frontier of a single wave is advanced on the parallel pool,
+ *                        waves with fewer cursors are advanced on one thread. Zero never splits a wave. The callbacks
+ *                        of the branches of a wave run concurrently on the same scratchpad and resources.
+ */
+public record SchedulerConfig(Supplier<HistoryStore> historyStore, RetentionPolicy retention, boolean pushUpdates,
+        ForkJoinPool parallelPool, int splitFrontierAt) {
+
+    /**
+     * Default configuration: every snapshot kept on heap, every cursor evaluated at each update pass
+     *
+     * @return the default configuration
+     */
+    public static SchedulerConfig defaults() {
+        return new SchedulerConfig( HistoryStore::onHeap, RetentionPolicy.keepAll(), false, null, 0 );
+    }
+
+    public SchedulerConfig withHistoryStore(Supplier<HistoryStore> historyStore) {
+        return new SchedulerConfig( historyStore, this.retention, this.pushUpdates, this.parallelPool,
+                this.splitFrontierAt );
+    }
+
+    public SchedulerConfig withRetention(RetentionPolicy retention) {
+        return new SchedulerConfig( this.historyStore, retention, this.pushUpdates, this.parallelPool,
+                this.splitFrontierAt );
+    }
+
+    public SchedulerConfig withPushUpdates(boolean pushUpdates) {
+        return new SchedulerConfig( this.historyStore, this.retention, pushUpdates, this.parallelPool,
+                this.splitFrontierAt );
+    }
+
+    public SchedulerConfig withSplitFrontierAt(int splitFrontierAt) {
+        if ( splitFrontierAt < 0 ) {
+            throw new IllegalArgumentException( "branch size must not be negative" );
+        }
+
+        return new SchedulerConfig( this.historyStore, this.retention, this.pushUpdates, this.parallelPool,
+                splitFrontierAt );
+    }
+
+    public SchedulerConfig withParallelPool(ForkJoinPool parallelPool) {
+        return new SchedulerConfig( this.historyStore, this.retention, this.pushUpdates, parallelPool,
+                this.splitFrontierAt );
+    }
+
+}
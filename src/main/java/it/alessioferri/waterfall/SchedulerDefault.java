@@ -39,11 +39,17 @@ package it.alessioferri.waterfall;
  */
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 
@@ -51,12 +57,55 @@ import org.slf4j.Logger;
  *
  * @author Alessio
  */
-public record SchedulerDefault<E extends Enum<E>, S extends FlowStage<E>, L extends Link>(FlowPlan<E, S, L> plan,
-        Map<Long, Long> sequence, List<TasksWave<E, S, L>> waves, Dispatcher<E, S, L> dispatcher, Logger log)
-        implements Scheduler<E, S, L> {
+public final class SchedulerDefault<E extends Enum<E>, S extends FlowStage<E>, L extends Link>
+        implements Scheduler<E, S, L>, AutoCloseable {
 
     /**
-     * Kickoff a new SchedulerDefault
+     * Outcome of a cursor whose task is still running
+     */
+    private static final int CURSOR_PENDING = -2;
+
+    /**
+     * Outcome of a cursor without stage or without task
+     */
+    private static final int CURSOR_DROPPED = -1;
+
+    /**
+     * Owner of a stage not reachable from the frontier
+     */
+    private static final int OWNER_NONE = -1;
+
+    /**
+     * Owner of a stage reachable from more than one branch of the frontier
+     */
+    private static final int OWNER_SHARED = -2;
+
+    private final LiveFlowPlan<E, S, L> plan;
+    private final List<TasksWave<E, S, L>> waves;
+    private final Dispatcher<E, S, L> dispatcher;
+    private final Logger log;
+    private final SchedulerConfig config;
+    private final ViewPublisher views;
+    private final TaskUpdateQueue updates;
+    private final BitSet dirtyWaves;
+    private final ActiveWaves<TasksWave<E, S, L>> activeWaves;
+
+    private SchedulerDefault(LiveFlowPlan<E, S, L> plan, Dispatcher<E, S, L> dispatcher, Logger log,
+            SchedulerConfig config) {
+        this.plan = plan;
+        this.waves = new ArrayList<>();
+        this.dispatcher = dispatcher;
+        this.log = log;
+        this.config = config;
+        this.views = new ViewPublisher();
+        this.updates = new TaskUpdateQueue( config.pushUpdates() );
+        this.dirtyWaves = new BitSet();
+        this.activeWaves = new ActiveWaves<>( this.waves );
+    }
+
+    /**
+     * Kickoff a new SchedulerDefault, the plan is compiled once and the scheduler runs against the compiled copy.
+     * Plans that are already indexed, like a MappedFlowPlan, are used as they are.
      *
      * @param <E>        Enum type
      * @param <S>        FlowStage with E as its' kind
@@ -68,15 +117,143 @@ public record SchedulerDefault<E extends Enum<E>, S extends FlowStage<E>, L exte
      */
     public static <E extends Enum<E>, S extends FlowStage<E>, L extends Link> SchedulerDefault<E, S, L> kickoff(
             FlowPlan<E, S, L> plan, Dispatcher<E, S, L> dispatcher, Logger log) {
-        var scheduler = new SchedulerDefault<E, S, L>( plan, plan.sequenceStages(), new ArrayList<>(), dispatcher,
-                log );
-        var entry = scheduler.kickoffWave( 0, -1, DelayDate.none(), plan.startSet() );
-        scheduler.waves.add( entry );
+        return kickoff( plan, dispatcher, log, SchedulerConfig.defaults() );
+    }
+
+    /**
+     * Kickoff a new SchedulerDefault with the specified configuration
+     *
+     * @param <E>        Enum type
+     * @param <S>        FlowStage with E as its' kind
+     * @param <L>        Link
+     * @param plan       plan to be followed
+     * @param dispatcher dispatcher for callbacks
+     * @param log        logger for the debug information
+     * @param config     configuration of the scheduler
+     * @return a scheduler for the plan
+     */
+    public static <E extends Enum<E>, S extends FlowStage<E>, L extends Link> SchedulerDefault<E, S, L> kickoff(
+            FlowPlan<E, S, L> plan, Dispatcher<E, S, L> dispatcher, Logger log, SchedulerConfig config) {
+        IndexedFlowPlan<E, S, L> indexed = plan instanceof IndexedFlowPlan<E, S, L> i ? i
+                : CompiledFlowPlan.compile( plan );
+        var scheduler = new SchedulerDefault<E, S, L>( new LiveFlowPlan<>( indexed ), dispatcher, log, config );
+        scheduler.addWave( scheduler.kickoffWave( 0, -1, DelayDate.none(), indexed.startSet(), List.of() ) );
         scheduler.updateWaves();
 
         return scheduler;
     }
 
+    /**
+     * Kickoff a new SchedulerDefault sharing the compiled plan through the process wide CompiledPlanCache
+     *
+     * @param <E>        Enum type
+     * @param <S>        FlowStage with E as its' kind
+     * @param <L>        Link
+     * @param key        identity and version of the plan
+     * @param plan       supplier of the plan, called only if the plan is not cached
+     * @param dispatcher dispatcher for callbacks
+     * @param log        logger for the debug information
+     * @return a scheduler for the plan
+     */
+    public static <E extends Enum<E>, S extends FlowStage<E>, L extends Link> SchedulerDefault<E, S, L> kickoff(
+            PlanKey key, Supplier<? extends FlowPlan<E, S, L>> plan, Dispatcher<E, S, L> dispatcher, Logger log) {
+        return kickoff( CompiledPlanCache.shared().compile( key, plan ), dispatcher, log );
+    }
+
+    /**
+     * Add a stage to the running plan, running waves will activate it once a link to it is evaluated
+     *
+     * @param stage stage to add
+     */
+    public void addStage(S stage) {
+        this.plan.addStage( stage );
+    }
+
+    /**
+     * Remove a stage and its links from the running plan, waves waiting on the stage drop it
+     *
+     * @param stageId id of the stage
+     * @return true if the stage was part of the plan
+     */
+    public boolean removeStage(long stageId) {
+        // cursors on the removed stage are dropped by the next full evaluation
+        this.updates.evaluateAll();
+        this.dirtyWaves.set( 0, this.waves.size() );
+        return this.plan.removeStage( stageId );
+    }
+
+    /**
+     * Add a link to the running plan, it is followed only when its source stage finishes after the change
+     *
+     * @param link link to add
+     */
+    public void addLink(L link) {
+        this.plan.addLink( link );
+        this.linkEdited( link );
+    }
+
+    /**
+     * Remove a link from the running plan
+     *
+     * @param link link to remove
+     * @return true if the link was part of the plan
+     */
+    public boolean removeLink(L link) {
+        var removed = this.plan.removeLink( link );
+
+        if ( removed ) {
+            this.linkEdited( link );
+        }
+
+        return removed;
+    }
+
+    /**
+     * Visit again the waves with a cursor on one of the stages of an edited link, their cursors are evaluated by the
+     * next pass against the edited plan
+     *
+     * @param link link added or removed
+     */
+    private void linkEdited(L link) {
+        for ( int i = 0; i < this.waves.size(); i++ ) {
+            var cursors = this.waves.get( i ).cursors();
+
+            for ( var stageId : new long[] { link.from(), link.to() } ) {
+                if ( cursors.contains( stageId ) ) {
+                    this.dirtyWaves.set( i );
+                    this.updates.changed( i, stageId );
+                }
+            }
+        }
+    }
+
+    /**
+     * Running plan, edited by the scheduler methods only
+     *
+     * @return
+     */
+    public LiveFlowPlan<E, S, L> plan() {
+        return this.plan;
+    }
+
+    /**
+     * All waves, in order of creation
+     *
+     * @return
+     */
+    @Override
+    public List<TasksWave<E, S, L>> waves() {
+        return this.waves;
+    }
+
+    public Dispatcher<E, S, L> dispatcher() {
+        return this.dispatcher;
+    }
+
+    public Logger log() {
+        return this.log;
+    }
+
     @Override
     public LocalDate startedAt() {
         if ( waves.isEmpty() ) {
@@ -85,191 +262,654 @@ public record SchedulerDefault<E extends Enum<E>, S extends FlowStage<E>, L exte
         return waves.get( 0 ).startedAt();
     }
 
-    private boolean isBackwardLink(Link link) {
-        var start = this.sequence.get( link.from() );
-        var end = this.sequence.get( link.to() );
-
-        return start >= end;
-    }
-
     /**
-     * Mark the reachable set of stages from the starting set
+     * Add a wave to the scheduler, it is visited by the next update pass. Indexed waves are visited again only when a
+     * snapshot changes the status of one of their cursors, any other wave is visited at every pass.
      *
-     * @param reachableSet current reachable set
-     * @param cursor       forward cursor to explore the graph
+     * @param wave wave to add
      */
-    private void markReachableSet(Collection<S> reachableSet, S cursor) {
-        var outgoings = this.plan.outgoings( cursor );
+    private void addWave(TasksWave<E, S, L> wave) {
+        var position = this.waves.size();
 
-        for ( var outgoing : outgoings ) {
-            var follow = this.plan.followTo( outgoing );
+        this.waves.add( wave );
+        this.dirtyWaves.set( position );
+        this.activeWaves.refresh( position );
+        this.views.touch( position );
 
-            if ( !reachableSet.contains( follow ) ) {
-                reachableSet.add( follow );
-                this.markReachableSet( reachableSet, follow );
-            }
+        if ( wave instanceof TasksWaveIndexed<E, S, L> indexed ) {
+            indexed.history().listen( (previous, snapshot) -> {
+                var changed = previous == null || previous.status() != snapshot.status();
+
+                var cursor = changed && indexed.cursors().containsCursor( snapshot.stageId() );
+
+                // waves updated in parallel share the dirty set and the views
+                synchronized ( this.dirtyWaves ) {
+                    this.views.touch( position );
+
+                    if ( cursor ) {
+                        this.dirtyWaves.set( position );
+                        this.updates.changed( position, snapshot.stageId() );
+                    }
+                }
+            } );
         }
     }
 
     /**
      * Kickoff a new wave
      *
-     * @param waveId   initial wave id
-     * @param parentId parent wave id
-     * @param startSet start set of stages
+     * @param waveId    initial wave id
+     * @param parentId  parent wave id
+     * @param startSet  start set of stages
+     * @param inherited snapshots shared with the parent wave
      * @return a new TasksWave with the speficied parameter
      */
-    private TasksWaveDefault<E, S, L> kickoffWave(long waveId, long parentId, Delay waveDelay, Collection<S> startSet) {
-        var wave = TasksWaveDefault.<E, S, L>initWave( waveId, parentId );
+    private TasksWaveIndexed<E, S, L> kickoffWave(long waveId, long parentId, Delay waveDelay, Collection<S> startSet,
+            List<TaskSnapshot> inherited) {
+        var wave = TasksWaveIndexed.<E, S, L>forkWave( waveId, parentId, this.config.historyStore().get(),
+                this.config.retention(), inherited );
 
-        var reachableSet = new HashSet<S>();
-        reachableSet.addAll( startSet );
+        var starts = new int[startSet.size()];
+        int k = 0;
 
         for ( var e : startSet ) {
-            System.out.println( e );
-            log.debug( "Processing: " + e.stageId() );
+            var index = this.plan.indexOf( e.stageId() );
+
+            if ( index < 0 ) {
+                throw new RuntimeException( "cannot start a wave from stage id " + e.stageId() + ", not in the plan" );
+            }
 
-            this.markReachableSet( reachableSet, e );
+            starts[k++] = index;
+        }
+
+        var reachableSet = this.plan.reachableFrom( starts );
+
+        for ( var e : startSet ) {
+            log.debug( "Processing: " + e.stageId() );
 
             var snapshot = this.dispatcher.schedulerFor( e.kind() ).scheduleTaskFor( wave, e, Collections.emptyList(),
                     waveDelay );
             wave.addSnapshot( snapshot );
-            wave.cursors().add( e.stageId() );
+            wave.cursors().addCursor( e.stageId() );
 
             log.debug( "Initial snapshot for planned task " + e.stageId() + " is: " + snapshot.toString() );
         }
 
-        for ( var s : this.plan.stages() ) {
-            if ( !reachableSet.contains( s ) ) {
-                wave.addSnapshot( TaskSnapshot.skipped( 0, s.stageId() ) );
+        var stageCount = this.plan.stageCount();
+        var unreachable = new BitSet( stageCount );
+
+        for ( int s = reachableSet.nextClearBit( 0 ); s < stageCount; s = reachableSet.nextClearBit( s + 1 ) ) {
+            if ( !this.plan.isRemoved( s ) ) {
+                unreachable.set( s );
             }
         }
 
+        wave.history().skip( this.plan, unreachable );
+
         return wave;
     }
 
-    private void updateWave(TasksWave<E, S, L> t) {
-        for ( int i = 0; i < t.cursors().size(); ) {
+    /**
+     * Advance the wave. The cursors are visited first and every finished one marks the targets of its links as
+     * candidates, then the candidates are evaluated in sequence order: a join stage is evaluated once per pass, no
+     * matter how many of its dependencies finished in the meantime.
+     *
+     * @param t        wave to update
+     * @param reported cursors to evaluate, null to evaluate all of them
+     * @param spawn    receiver of the new waves started by the pass, created when the receiver calls the supplier
+     */
+    private void updateWave(TasksWave<E, S, L> t, LongPredicate reported,
+            Consumer<Supplier<TasksWave<E, S, L>>> spawn) {
+        var candidates = new BitSet();
+
+        LongPredicate consumed = reported == null ? cursor -> this.advanceCursor( t, cursor, candidates, spawn )
+                : cursor -> reported.test( cursor ) && this.advanceCursor( t, cursor, candidates, spawn );
+
+        var split = this.config.splitFrontierAt();
+        var pool = this.config.parallelPool();
+
+        if ( t.cursors() instanceof CursorFrontier frontier && pool != null && split > 0 && frontier.size() > split ) {
+            this.advanceBranchesInParallel( t, frontier, reported, candidates, spawn, pool, split );
+        } else if ( t.cursors() instanceof CursorFrontier frontier ) {
+            frontier.removeWhere( consumed );
+        } else {
+            t.cursors().removeIf( cursor -> consumed.test( cursor ) );
+        }
+
+        this.evaluateCandidates( t, candidates, null, OWNER_NONE, spawn );
+
+        if ( t.cursors().isEmpty() ) {
+            log.debug( "Current wave is complete, skipping all the remaining stages" );
 
-            var cursor = t.cursors().get( i );
+            if ( t instanceof TasksWaveIndexed<E, S, L> indexed ) {
+                var untouched = new BitSet( this.plan.stageCount() );
 
-            log.debug( "Processing cursor: " + cursor );
+                for ( int s = 0; s < this.plan.stageCount(); s++ ) {
+                    if ( !this.plan.isRemoved( s ) && !t.hasRelatedTask( this.plan.stageIdAt( s ) ) ) {
+                        untouched.set( s );
+                    }
+                }
 
-            var stage = this.plan.stageById( cursor );
+                indexed.history().skip( this.plan, untouched );
+                indexed.history().compact();
+                indexed.history().close();
+            } else {
+                for ( var s : plan.stages() ) {
+                    if ( !t.hasRelatedTask( s ) ) {
+                        t.addSnapshot( TaskSnapshot.skipped( 0, s.stageId() ) );
+                    }
+                }
+            }
+        }
+    }
 
-            if ( !t.hasRelatedTask( stage ) ) {
-                log.debug( "Missing related task for stage id: " + stage.stageId() );
-                t.cursors().remove( i );
+    /**
+     * Evaluate the candidates in sequence order. Forward links always raise the sequence number, so the stages
+     * activated by a candidate only add candidates after the current one.
+     *
+     * @param t          wave of the candidates
+     * @param candidates sequence numbers of the stages to evaluate, the evaluated ones are cleared
+     * @param owners     branch owning each stage by sequence number, null to evaluate every candidate
+     * @param owner      branch evaluating the candidates, the candidates of the other branches are left in the set
+     * @param spawn      receiver of the new waves
+     */
+    private void evaluateCandidates(TasksWave<E, S, L> t, BitSet candidates, int[] owners, int owner,
+            Consumer<Supplier<TasksWave<E, S, L>>> spawn) {
+        for ( int seq = candidates.nextSetBit( 0 ); seq >= 0; seq = candidates.nextSetBit( seq + 1 ) ) {
+            if ( owners != null && owners[seq] != owner ) {
                 continue;
             }
 
-            var taskSnapshot = t.snapshotOfStage( stage.stageId() );
+            candidates.clear( seq );
 
-            System.out.println(
-                    this.plan.title() + " cursor: " + cursor + ", Task status is: " + taskSnapshot.status().name() );
-            log.debug( "Task status is: " + taskSnapshot.status().name() );
+            var index = this.plan.stageAtSequence( seq );
+            var next = this.plan.stageAt( index );
+            var callbacks = this.dispatcher.schedulerFor( next.kind() );
+            var result = callbacks.onDepsUpdates( t, next, this.plan.dependenciesOf( index ) );
 
-            if ( taskSnapshot.status().isFinished() ) {
+            if ( result.canActivate() ) {
+                var snapshot = callbacks.scheduleTaskFor( t, next, this.plan.incomings( next ), DelayDate.none() );
+                t.addSnapshot( snapshot );
 
-                var links = this.plan.outgoings( stage );
-                System.out.println( "Outgoings: " + links );
+                if ( t.snapshotOfStage( next.stageId() ).status().isFinished() ) {
+                    this.followLinks( t, index, candidates, spawn );
+                } else if ( t.cursors() instanceof CursorFrontier frontier ) {
+                    frontier.addCursor( next.stageId() );
+                } else {
+                    t.cursors().add( next.stageId() );
+                }
+            }
 
-                for ( var link : links ) {
+            if ( result.maybeNew().waveId() == -1 ) {
+                var maybeNew = result.maybeNew();
+                spawn.accept( () -> maybeNew.withWaveId( this.waves.size() ) );
+            }
+        }
+    }
 
-                    var next = this.plan.followTo( link );
-                    var incomings = this.plan.incomings( next );
-                    var deps = new ArrayList<Long>();
+    /**
+     * Check the task of a cursor, a finished task marks the targets of its links as candidates
+     *
+     * @param t          wave of the cursor
+     * @param cursor     stage id of the cursor
+     * @param candidates sequence numbers of the stages to evaluate
+     * @param spawn      receiver of the new waves
+     * @return true if the cursor is consumed and must be removed
+     */
+    private boolean advanceCursor(TasksWave<E, S, L> t, long cursor, BitSet candidates,
+            Consumer<Supplier<TasksWave<E, S, L>>> spawn) {
+        var index = this.finishedIndex( t, cursor );
 
-                    for ( var incoming : incomings ) {
-                        deps.add( incoming.from() );
-                    }
+        if ( index == CURSOR_PENDING ) {
+            return false;
+        }
 
-                    var callbacks = this.dispatcher.schedulerFor( next.kind() );
+        if ( index >= 0 ) {
+            this.followLinks( t, index, candidates, spawn );
+            log.debug( "Removing cursor as the task is finished" );
+        }
+
+        return true;
+    }
+
+    /**
+     * Advance a large frontier in branches, each on its own task. The frontier is cut in groups of cursors and a stage
+     * reachable from one group only belongs to the branch of that group: the branch checks its cursors, evaluates its
+     * candidates and activates its stages against a BranchWave, so the wave is only read while the branches run. The
+     * stages reachable from more than one branch are the joins, they are left in the candidates and evaluated after
+     * the branches are merged, on this thread.
+     *
+     * @param t          wave to update
+     * @param frontier   cursors of the wave
+     * @param reported   cursors to evaluate, null to evaluate all of them
+     * @param candidates sequence numbers of the stages to evaluate, receives the joins
+     * @param spawn      receiver of the new waves
+     * @param pool       pool running the branches
+     * @param split      number of cursors of a branch
+     */
+    private void advanceBranchesInParallel(TasksWave<E, S, L> t, CursorFrontier frontier, LongPredicate reported,
+            BitSet candidates, Consumer<Supplier<TasksWave<E, S, L>>> spawn, ForkJoinPool pool, int split) {
+        var size = frontier.size();
+        var owners = this.ownersOf( frontier, split );
+        var consumed = new boolean[size];
+        var branches = new ArrayList<BranchWave<E, S, L>>();
+        var tasks = new ArrayList<ForkJoinTask<?>>();
+
+        for ( int from = 0; from < size; from += split ) {
+            var branch = new BranchWave<E, S, L>( t );
+            var owner = from / split;
+            var start = from;
+            var end = Math.min( size, from + split );
+
+            branches.add( branch );
+            tasks.add( ForkJoinTask.adapt( () -> {
+                for ( int i = start; i < end; i++ ) {
+                    var cursor = frontier.cursorAt( i );
+                    consumed[i] = ( reported == null || reported.test( cursor ) )
+                            && this.advanceCursor( branch, cursor, branch.candidates(), branch::spawn );
+                }
 
-                    if ( this.isBackwardLink( link ) ) {
-                        var maybeNewWave = callbacks.onBackwardLinkUpdate( t, next, incomings, link.from() );
+                this.evaluateCandidates( branch, branch.candidates(), owners, owner, branch::spawn );
+            } ) );
+        }
 
-                        if ( maybeNewWave.isPresent() ) {
-                            var data = maybeNewWave.get();
-                            this.waves.add( this.kickoffWave( this.waves.size(), data.parentWave(), data.waveDelay(),
-                                    data.startSet() ) );
-                        }
+        // the branches run on the configured pool, even when the caller is a worker of another pool
+        if ( ForkJoinTask.getPool() == pool ) {
+            ForkJoinTask.invokeAll( tasks );
+        } else {
+            pool.invoke( ForkJoinTask.adapt( () -> ForkJoinTask.invokeAll( tasks ) ) );
+        }
 
-                    } else {
-                        var result = callbacks.onDepsUpdates( t, next, deps );
+        var added = new ArrayList<Long>();
 
-                        if ( result.canActivate() ) {
-                            var snapshot = callbacks.scheduleTaskFor( t, next, incomings, DelayDate.none() );
-                            t.addSnapshot( snapshot );
-                            t.cursors().add( next.stageId() );
-                        }
+        for ( var branch : branches ) {
+            added.addAll( branch.merge( spawn ) );
+            candidates.or( branch.candidates() );
+        }
 
-                        if ( result.maybeNew().waveId() == -1 ) {
-                            this.waves.add( result.maybeNew().withWaveId( this.waves.size() ) );
-                        }
-                    }
+        // the frontier is visited in order, the k-th cursor visited is the k-th checked
+        var visited = new int[] { 0 };
+        frontier.removeWhere( cursor -> consumed[visited[0]++] );
 
+        for ( var cursor : added ) {
+            frontier.addCursor( cursor );
+        }
+    }
+
+    /**
+     * Branch owning each stage reachable from the frontier by forward links, by sequence number. The cursors of a
+     * group own the stages they reach, a stage reached by more than one group is OWNER_SHARED. Forward links always
+     * raise the sequence number, so a single sweep in sequence order is enough.
+     *
+     * @param frontier cursors of the wave
+     * @param split    number of cursors of a group
+     * @return the owners, OWNER_NONE for the stages not reachable
+     */
+    private int[] ownersOf(CursorFrontier frontier, int split) {
+        var owners = new int[this.plan.stageCount()];
+        var first = owners.length;
+
+        Arrays.fill( owners, OWNER_NONE );
+
+        for ( int i = 0; i < frontier.size(); i++ ) {
+            var index = this.plan.indexOf( frontier.cursorAt( i ) );
+
+            if ( index >= 0 ) {
+                var seq = this.plan.sequenceOf( index );
+                owners[seq] = joinedOwner( owners[seq], i / split );
+                first = Math.min( first, seq );
+            }
+        }
+
+        for ( int seq = first; seq < owners.length; seq++ ) {
+            if ( owners[seq] == OWNER_NONE ) {
+                continue;
+            }
+
+            var index = this.plan.stageAtSequence( seq );
+            var outgoings = this.plan.outgoingCount( index );
+
+            for ( int k = 0; k < outgoings; k++ ) {
+                var linkIndex = this.plan.outgoingAt( index, k );
+
+                if ( !this.plan.isBackward( linkIndex ) ) {
+                    var target = this.plan.sequenceOf( this.plan.linkTo( linkIndex ) );
+                    owners[target] = joinedOwner( owners[target], owners[seq] );
                 }
+            }
+        }
+
+        return owners;
+    }
+
+    private static int joinedOwner(int owner, int other) {
+        return owner == OWNER_NONE || owner == other ? other : OWNER_SHARED;
+    }
+
+    /**
+     * Check the task of a cursor without following its links, the wave is only read
+     *
+     * @param t      wave of the cursor
+     * @param cursor stage id of the cursor
+     * @return the index of the stage if its task is finished, CURSOR_DROPPED if the cursor has no stage or no task,
+     *         CURSOR_PENDING if the task is still running
+     */
+    private int finishedIndex(TasksWave<E, S, L> t, long cursor) {
+        log.debug( "Processing cursor: " + cursor );
+
+        var index = this.plan.indexOf( cursor );
+
+        if ( index < 0 ) {
+            log.debug( "Stage id " + cursor + " was removed from the plan" );
+            return CURSOR_DROPPED;
+        }
+
+        if ( !t.hasRelatedTask( cursor ) ) {
+            log.debug( "Missing related task for stage id: " + cursor );
+            return CURSOR_DROPPED;
+        }
+
+        var taskSnapshot = t.snapshotOfStage( cursor );
+
+        log.debug( "Task status is: " + taskSnapshot.status().name() );
+
+        return taskSnapshot.status().isFinished() ? index : CURSOR_PENDING;
+    }
+
+    /**
+     * Follow the links leaving a finished stage: backward links are evaluated at once, the targets of the forward
+     * links become candidates for the current pass
+     *
+     * @param t          wave of the finished stage
+     * @param index      index of the finished stage
+     * @param candidates sequence numbers of the stages to evaluate
+     * @param spawn      receiver of the new waves
+     */
+    private void followLinks(TasksWave<E, S, L> t, int index, BitSet candidates,
+            Consumer<Supplier<TasksWave<E, S, L>>> spawn) {
+        if ( this.markForwardLinks( index, candidates ) ) {
+            this.followBackwardLinks( t, index, spawn );
+        }
+    }
+
+    /**
+     * Mark the targets of the forward links leaving the stage as candidates, the plan is only read
+     *
+     * @param index      index of the finished stage
+     * @param candidates sequence numbers of the stages to evaluate
+     * @return true if the stage has backward links too
+     */
+    private boolean markForwardLinks(int index, BitSet candidates) {
+        var outgoings = this.plan.outgoingCount( index );
+        var backward = false;
 
-                t.cursors().remove( i );
+        for ( int k = 0; k < outgoings; k++ ) {
+            var linkIndex = this.plan.outgoingAt( index, k );
 
-                log.debug( "Removing cursor as the task is finished" );
+            if ( this.plan.isBackward( linkIndex ) ) {
+                backward = true;
             } else {
-                i++;
+                candidates.set( this.plan.sequenceOf( this.plan.linkTo( linkIndex ) ) );
             }
+        }
+
+        return backward;
+    }
+
+    /**
+     * Evaluate the backward links leaving a finished stage
+     *
+     * @param t     wave of the finished stage
+     * @param index index of the finished stage
+     * @param spawn receiver of the new waves
+     */
+    private void followBackwardLinks(TasksWave<E, S, L> t, int index, Consumer<Supplier<TasksWave<E, S, L>>> spawn) {
+        var outgoings = this.plan.outgoingCount( index );
+
+        for ( int k = 0; k < outgoings; k++ ) {
+            var linkIndex = this.plan.outgoingAt( index, k );
+
+            if ( !this.plan.isBackward( linkIndex ) ) {
+                continue;
+            }
+
+            var next = this.plan.stageAt( this.plan.linkTo( linkIndex ) );
+            var callbacks = this.dispatcher.schedulerFor( next.kind() );
+            var maybeNewWave = callbacks.onBackwardLinkUpdate( t, next, this.plan.incomings( next ),
+                    this.plan.linkAt( linkIndex ).from() );
 
-            log.debug( "Ready for next cursor at index: " + i );
+            if ( maybeNewWave.isPresent() ) {
+                var data = maybeNewWave.get();
+                spawn.accept( () -> this.kickoffWave( this.waves.size(), data.parentWave(), data.waveDelay(),
+                        data.startSet(), this.inheritedFrom( data.parentWave() ) ) );
+            }
         }
+    }
 
-        if ( t.cursors().isEmpty() ) {
-            log.debug( "Current wave is complete, skipping all the remaining stages" );
+    /**
+     * History shared with a wave forked from the parent, the chunks already published in the views of the parent are
+     * not copied again
+     *
+     * @param parentId id of the parent wave
+     * @return the stored snapshots of the parent, empty if there is no such wave
+     */
+    private List<TaskSnapshot> inheritedFrom(long parentId) {
+        var position = this.positionOf( parentId );
+        return position < 0 ? List.of() : this.views.storedHistory( position, this.waves.get( position ) );
+    }
 
-            for ( var s : plan.stages() ) {
-                if ( !t.hasRelatedTask( s ) ) {
-                    t.addSnapshot( TaskSnapshot.skipped( 0, s.stageId() ) );
-                }
+    /**
+     * Position of the wave in the scheduler
+     *
+     * @param waveId id of the wave
+     * @return the position or -1 if there is no such wave
+     */
+    private int positionOf(long waveId) {
+        // waves are numbered by position, unless a callback renumbered one
+        if ( waveId >= 0 && waveId < this.waves.size() && this.waves.get( ( int ) waveId ).waveId() == waveId ) {
+            return ( int ) waveId;
+        }
+
+        for ( int i = 0; i < this.waves.size(); i++ ) {
+            if ( this.waves.get( i ).waveId() == waveId ) {
+                return i;
             }
         }
+
+        return -1;
+    }
+
+    /**
+     * Queue a new snapshot of a task, safe to call from any thread. The snapshot is applied at the next updateWaves,
+     * with push updates enabled in the configuration only the cursors whose snapshots changed are evaluated.
+     *
+     * @param waveId   id of the wave of the task
+     * @param snapshot new snapshot of the task
+     */
+    @Override
+    public void onTaskUpdate(long waveId, TaskSnapshot snapshot) {
+        this.updates.offer( waveId, snapshot );
     }
 
     @Override
     public Scheduler<E, S, L> updateWaves() {
-        for ( int i = 0; i < this.waves.size(); i++ ) {
+        this.updates.drain( this.waves, this::positionOf );
+
+        if ( this.config.parallelPool() != null ) {
+            this.updateWavesInParallel( this.config.parallelPool() );
+            this.views.publish( this.waves );
+            return this;
+        }
+
+        Consumer<Supplier<TasksWave<E, S, L>>> spawn = wave -> this.addWave( wave.get() );
+
+        // waves added by the pass are dirty and visited before it ends
+        for ( int i = this.dirtyWaves.nextSetBit( 0 ); i >= 0; i = this.dirtyWaves.nextSetBit( i + 1 ) ) {
             var t = this.waves.get( i );
+            var reported = this.updates.takeCursorsToEvaluate( i, t instanceof TasksWaveIndexed );
+            this.dirtyWaves.clear( i );
+
             if ( t.hasUnresolvedTasks() ) {
-                this.updateWave( t );
+                this.updateWave( t, reported, spawn );
             }
+
+            this.waveVisited( i );
         }
 
+        this.views.publish( this.waves );
         return this;
     }
 
+    /**
+     * Update the dirty waves on the pool, in rounds. The waves of a round run concurrently, the waves they start are
+     * collected per wave and created at the end of the round in position order, so they get the same ids they would
+     * get in a sequential pass. The new waves are updated by the next round.
+     *
+     * @param pool pool running the waves
+     */
+    private void updateWavesInParallel(ForkJoinPool pool) {
+        var nextPass = new BitSet();
+
+        while ( !this.dirtyWaves.isEmpty() ) {
+            var positions = this.dirtyWaves.stream().toArray();
+            var spawned = new ArrayList<List<Supplier<TasksWave<E, S, L>>>>( positions.length );
+            // copies made by withWaveId share history and cursors, they are updated one after the other
+            var groups = new IdentityHashMap<Object, List<Runnable>>();
+
+            this.dirtyWaves.clear();
+
+            for ( var position : positions ) {
+                var t = this.waves.get( position );
+                var reported = this.updates.takeCursorsToEvaluate( position, t instanceof TasksWaveIndexed );
+                var started = new ArrayList<Supplier<TasksWave<E, S, L>>>();
+
+                spawned.add( started );
+
+                if ( t.hasUnresolvedTasks() ) {
+                    groups.computeIfAbsent( t.cursors(), k -> new ArrayList<>() )
+                            .add( () -> this.updateWave( t, reported, started::add ) );
+                }
+            }
+
+            var tasks = new ArrayList<ForkJoinTask<?>>( groups.size() );
+
+            for ( var group : groups.values() ) {
+                tasks.add( ForkJoinTask.adapt( () -> group.forEach( Runnable::run ) ) );
+            }
+
+            pool.invoke( ForkJoinTask.adapt( () -> ForkJoinTask.invokeAll( tasks ) ) );
+
+            // waves marked while they were updated wait for the next pass, as in a sequential pass
+            nextPass.or( this.dirtyWaves );
+            this.dirtyWaves.clear();
+
+            for ( int k = 0; k < positions.length; k++ ) {
+                this.waveVisited( positions[k] );
+
+                for ( var wave : spawned.get( k ) ) {
+                    this.addWave( wave.get() );
+                }
+            }
+
+            // only the new waves are left for the next round
+            for ( var position : positions ) {
+                if ( this.dirtyWaves.get( position ) ) {
+                    this.dirtyWaves.clear( position );
+                    nextPass.set( position );
+                }
+            }
+        }
+
+        this.dirtyWaves.or( nextPass );
+    }
+
+    /**
+     * Bookkeeping after a wave is visited by an update pass
+     *
+     * @param position position of the wave
+     */
+    private void waveVisited(int position) {
+        this.activeWaves.refresh( position );
+        this.views.touch( position );
+
+        if ( !( this.waves.get( position ) instanceof TasksWaveIndexed ) ) {
+            this.dirtyWaves.set( position );
+        }
+    }
+
+    /**
+     * View published after the last updateWaves or pollSnapshotsUpdates, safe to read from any thread
+     *
+     * @return the latest published view
+     */
+    @Override
+    public SchedulerView view() {
+        return this.views.current();
+    }
+
+    /**
+     * Running waves as of the last update pass, a live view that is not copied
+     *
+     * @return the running waves
+     */
     @Override
     public Collection<TasksWave<E, S, L>> runningWaves() {
-        var list = new ArrayList<TasksWave<E, S, L>>();
+        return this.activeWaves;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return this.activeWaves.isEmpty();
+    }
 
-        for ( var e : this.waves ) {
-            if ( e.hasUnresolvedTasks() ) {
-                list.add( e );
+    /**
+     * Close the history stores of the waves, the waves stay readable. A wave releases its store as soon as it is
+     * complete, this is needed only for the waves still running when the scheduler is dropped.
+     */
+    @Override
+    public void close() {
+        for ( var w : this.waves ) {
+            if ( w instanceof TasksWaveIndexed<E, S, L> indexed ) {
+                indexed.history().close();
             }
         }
+    }
 
-        return list;
+    /**
+     * Close the scheduler and release the storage of the histories of every wave, for the histories kept as scratch
+     * space. The waves must not be read afterwards.
+     */
+    public void discard() {
+        for ( var w : this.waves ) {
+            if ( w instanceof TasksWaveIndexed<E, S, L> indexed ) {
+                indexed.history().discard();
+            }
+        }
     }
 
     @Override
     public void pollSnapshotsUpdates() {
-        for ( var w : this.waves ) {
-            var latest = w.latestSnapshotByTask();
+        for ( int i = 0; i < this.waves.size(); i++ ) {
+            var w = this.waves.get( i );
 
-            for ( var t : latest.keySet() ) {
-                var s = latest.get( t );
-                var n = this.dispatcher.takeSnapshot( w, this.plan.stageById( s.stageId() ), t );
+            for ( var e : w.latestByTaskView().entrySet() ) {
+                var t = e.getKey();
+                var s = e.getValue();
+                var index = this.plan.indexOf( s.stageId() );
+
+                if ( index < 0 ) {
+                    continue;
+                }
+
+                var n = this.dispatcher.takeSnapshot( w, this.plan.stageAt( index ), t );
                 if ( n.status() != s.status() ) {
                     w.addSnapshot( n );
+                    this.views.touch( i );
                 }
             }
         }
+
+        this.views.publish( this.waves );
     }
 
 }
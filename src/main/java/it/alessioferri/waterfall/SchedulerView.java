@@ -0,0 +1,95 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable copy of the state of a scheduler. Views published one after the other share the waves that did not change
+ * in the meantime.
+ *
+ * @author Alessio
+ */
+public record SchedulerView(long revision, List<WaveView> waves) {
+
+    /**
+     * Started at
+     *
+     * @return the start date of the first wave
+     */
+    public LocalDate startedAt() {
+        if ( this.waves.isEmpty() ) {
+            throw new RuntimeException( "The plan has not started" );
+        }
+        return this.waves.get( 0 ).startedAt();
+    }
+
+    /**
+     * Running waves when the view was taken
+     *
+     * @return
+     */
+    public List<WaveView> runningWaves() {
+        var list = new ArrayList<WaveView>();
+
+        for ( var e : this.waves ) {
+            if ( e.isRunning() ) {
+                list.add( e );
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Is complete
+     *
+     * @return true if no wave was running when the view was taken
+     */
+    public boolean isComplete() {
+        for ( var e : this.waves ) {
+            if ( e.isRunning() ) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Copy the state of any scheduler
+     *
+     * @param scheduler scheduler to copy
+     * @return the view of the scheduler
+     */
+    public static SchedulerView of(Scheduler<?, ?, ?> scheduler) {
+        var waves = new ArrayList<WaveView>();
+
+        for ( var e : scheduler.waves() ) {
+            waves.add( WaveView.of( e ) );
+        }
+
+        return new SchedulerView( 0, List.copyOf( waves ) );
+    }
+
+}
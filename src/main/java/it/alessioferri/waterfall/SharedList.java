@@ -0,0 +1,118 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list kept as a tree of fixed size chunks. Replacing or appending an element returns a new list that shares
+ * every chunk off the path to the element with the previous one, so a list of many elements changed in a few
+ * positions costs as much as the changes.
+ *
+ * @author Alessio
+ * @param <T> type of the elements
+ */
+final class SharedList<T> extends AbstractList<T> implements RandomAccess {
+
+    private static final int CHUNK_SHIFT = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final SharedList<?> EMPTY = new SharedList<>( new Object[CHUNK_SIZE], 0, 0 );
+
+    /**
+     * Root chunk, the chunks below the last level hold other chunks
+     */
+    private final Object[] root;
+    private final int shift;
+    private final int size;
+
+    private SharedList(Object[] root, int shift, int size) {
+        this.root = root;
+        this.shift = shift;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> SharedList<T> empty() {
+        return ( SharedList<T> ) EMPTY;
+    }
+
+    /**
+     * List with the element at the position replaced, or appended if the position is the size of the list
+     *
+     * @param index   position of the element, between 0 and size() inclusive
+     * @param element new element
+     * @return a new list
+     */
+    SharedList<T> with(int index, T element) {
+        Objects.checkIndex( index, this.size + 1 );
+
+        var root = this.root;
+        var shift = this.shift;
+
+        if ( index >>> shift >= CHUNK_SIZE ) {
+            // the tree is full, it becomes the first child of a new root
+            root = new Object[CHUNK_SIZE];
+            root[0] = this.root;
+            shift += CHUNK_SHIFT;
+        }
+
+        return new SharedList<>( replaced( root, shift, index, element ), shift, Math.max( this.size, index + 1 ) );
+    }
+
+    private static Object[] replaced(Object[] chunk, int shift, int index, Object element) {
+        var copy = Arrays.copyOf( chunk, CHUNK_SIZE );
+
+        if ( shift == 0 ) {
+            copy[index & CHUNK_MASK] = element;
+        } else {
+            var slot = ( index >>> shift ) & CHUNK_MASK;
+            var child = copy[slot] == null ? new Object[CHUNK_SIZE] : ( Object[] ) copy[slot];
+            copy[slot] = replaced( child, shift - CHUNK_SHIFT, index, element );
+        }
+
+        return copy;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        Objects.checkIndex( index, this.size );
+
+        var chunk = this.root;
+
+        for ( int level = this.shift; level > 0; level -= CHUNK_SHIFT ) {
+            chunk = ( Object[] ) chunk[( index >>> level ) & CHUNK_MASK];
+        }
+
+        return ( T ) chunk[index & CHUNK_MASK];
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+}
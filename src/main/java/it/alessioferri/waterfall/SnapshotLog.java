@@ -0,0 +1,153 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of snapshots kept in fixed size chunks. Appending returns a new log that shares every full chunk with
+ * the previous one, only the last partial chunk is copied, so publishing a growing history costs as much as its tail.
+ * The index of the latest snapshots is built on the first lookup and shared by every reader of the same log.
+ *
+ * @author Alessio
+ */
+final class SnapshotLog extends AbstractList<TaskSnapshot> implements RandomAccess {
+
+    private static final int CHUNK_SHIFT = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final SnapshotLog EMPTY = new SnapshotLog( new TaskSnapshot[0][], 0 );
+
+    private final TaskSnapshot[][] chunks;
+    private final int size;
+    private volatile Latest latest;
+
+    private SnapshotLog(TaskSnapshot[][] chunks, int size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    static SnapshotLog empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Log with the elements of the source between from and to appended
+     *
+     * @param source list to copy from
+     * @param from   first position to append, inclusive
+     * @param to     last position to append, exclusive
+     * @return a new log, or this one if nothing is appended
+     */
+    SnapshotLog appended(List<TaskSnapshot> source, int from, int to) {
+        if ( from >= to ) {
+            return this;
+        }
+
+        var size = this.size + to - from;
+        var chunks = Arrays.copyOf( this.chunks, ( size + CHUNK_MASK ) >>> CHUNK_SHIFT );
+        var last = this.size >>> CHUNK_SHIFT;
+
+        // the partial chunk is still visible through this log, the new one writes on a copy
+        if ( ( this.size & CHUNK_MASK ) != 0 ) {
+            chunks[last] = Arrays.copyOf( this.chunks[last], CHUNK_SIZE );
+        }
+
+        for ( int i = this.size, p = from; p < to; i++, p++ ) {
+            var chunk = i >>> CHUNK_SHIFT;
+
+            if ( chunks[chunk] == null ) {
+                chunks[chunk] = new TaskSnapshot[CHUNK_SIZE];
+            }
+
+            chunks[chunk][i & CHUNK_MASK] = source.get( p );
+        }
+
+        return new SnapshotLog( chunks, size );
+    }
+
+    /**
+     * Latest snapshot of the stage
+     *
+     * @param stageId id of the stage
+     * @return the latest snapshot or null if the stage has none
+     */
+    TaskSnapshot latestOfStage(long stageId) {
+        var position = this.latest().byStage().get( stageId );
+        return position < 0 ? null : this.get( position );
+    }
+
+    /**
+     * Latest snapshot of the task
+     *
+     * @param taskId id of the task
+     * @return the latest snapshot or null if the task has none
+     */
+    TaskSnapshot latestOfTask(long taskId) {
+        var position = this.latest().byTask().get( taskId );
+        return position < 0 ? null : this.get( position );
+    }
+
+    /**
+     * Index of the latest snapshots, never modified once published. Two threads building it at once waste some work
+     * and one of the two copies is kept.
+     *
+     * @return the index
+     */
+    private Latest latest() {
+        var latest = this.latest;
+
+        if ( latest == null ) {
+            latest = new Latest( new LongIntMap( this.size ), new LongIntMap( this.size ) );
+
+            for ( int i = 0; i < this.size; i++ ) {
+                var snapshot = this.get( i );
+                latest.byStage().put( snapshot.stageId(), i );
+                latest.byTask().put( snapshot.taskId(), i );
+            }
+
+            this.latest = latest;
+        }
+
+        return latest;
+    }
+
+    @Override
+    public TaskSnapshot get(int index) {
+        Objects.checkIndex( index, this.size );
+        return this.chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    private record Latest(LongIntMap byStage, LongIntMap byTask) {
+
+    }
+
+}
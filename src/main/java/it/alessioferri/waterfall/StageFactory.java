@@ -0,0 +1,43 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Build a stage from its stored fields, used by plans that are not backed by stage objects
+ *
+ * @author Alessio
+ * @param <E> Enumeration of block ids
+ * @param <S> FlowStage type
+ */
+@FunctionalInterface
+public interface StageFactory<E extends Enum<E>, S extends FlowStage<E>> {
+
+    /**
+     * Build a stage
+     *
+     * @param stageId     id of the stage
+     * @param kind        kind of the stage
+     * @param delayPolicy delay policy of the stage
+     * @return the stage
+     */
+    public S stage(long stageId, E kind, DelayPolicy delayPolicy);
+
+}
@@ -0,0 +1,159 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.LongPredicate;
+import java.util.function.LongToIntFunction;
+
+/**
+ * Task updates pushed to a scheduler, queued by any thread and applied by the scheduler thread at the next update pass.
+ * In push mode the queue also remembers the cursor stages whose snapshots changed in each wave, so that the pass
+ * evaluates only those cursors. A wave that is not tracked is evaluated as a whole, as it happens to every wave outside
+ * push mode.
+ *
+ * @author Alessio
+ */
+public final class TaskUpdateQueue {
+
+    private final boolean pushMode;
+    private final Queue<Update> queue;
+    private final List<LongIntMap> reported;
+
+    TaskUpdateQueue(boolean pushMode) {
+        this.pushMode = pushMode;
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.reported = new ArrayList<>();
+    }
+
+    /**
+     * Queue an update, safe to call from any thread
+     *
+     * @param waveId   id of the wave of the task
+     * @param snapshot new snapshot of the task
+     */
+    void offer(long waveId, TaskSnapshot snapshot) {
+        this.queue.add( new Update( waveId, snapshot ) );
+    }
+
+    /**
+     * Number of updates waiting for the next pass
+     *
+     * @return
+     */
+    public int pending() {
+        return this.queue.size();
+    }
+
+    /**
+     * Apply the queued updates to their waves. An update with the same status of the latest snapshot of the task is
+     * dropped, as well as the updates of unknown waves.
+     *
+     * @param waves      waves of the scheduler
+     * @param positionOf position of a wave from its id, -1 if unknown
+     * @return number of snapshots added
+     */
+    int drain(List<? extends TasksWave<?, ?, ?>> waves, LongToIntFunction positionOf) {
+        int applied = 0;
+
+        for ( var update = this.queue.poll(); update != null; update = this.queue.poll() ) {
+            var position = positionOf.applyAsInt( update.waveId() );
+
+            if ( position < 0 ) {
+                continue;
+            }
+
+            var wave = waves.get( position );
+            var snapshot = update.snapshot();
+            var latest = wave.latestByTaskView().get( snapshot.taskId() );
+
+            if ( latest != null && latest.status() == snapshot.status() && latest.result() == snapshot.result() ) {
+                continue;
+            }
+
+            wave.addSnapshot( snapshot );
+            applied++;
+        }
+
+        return applied;
+    }
+
+    /**
+     * Record a change to the snapshot of a cursor stage, whoever added it
+     *
+     * @param position position of the wave
+     * @param stageId  id of the cursor stage
+     */
+    void changed(int position, long stageId) {
+        var stages = this.pushMode ? this.reportedAt( position ) : null;
+
+        if ( stages != null ) {
+            stages.put( stageId, 0 );
+        }
+    }
+
+    /**
+     * Take the cursors the pass must evaluate for the wave, before the wave is updated. The changes reported while the
+     * wave is updated go to a new set and are evaluated by the next pass.
+     *
+     * @param position position of the wave
+     * @param tracked  true if every change to the cursors of the wave is reported, from now on
+     * @return a filter of the cursors or null if every cursor must be evaluated
+     */
+    LongPredicate takeCursorsToEvaluate(int position, boolean tracked) {
+        if ( !this.pushMode ) {
+            return null;
+        }
+
+        var stages = this.reportedAt( position );
+
+        if ( tracked ) {
+            this.reported.set( position, new LongIntMap( 16 ) );
+        }
+
+        return stages == null ? null : stages::containsKey;
+    }
+
+    /**
+     * Evaluate every cursor of every wave at the next pass, the cursors changed without a new snapshot
+     */
+    void evaluateAll() {
+        for ( int i = 0; i < this.reported.size(); i++ ) {
+            this.reported.set( i, null );
+        }
+    }
+
+    private LongIntMap reportedAt(int position) {
+        while ( this.reported.size() <= position ) {
+            this.reported.add( null );
+        }
+
+        return this.reported.get( position );
+    }
+
+    private record Update(long waveId, TaskSnapshot snapshot) {
+
+    }
+
+}
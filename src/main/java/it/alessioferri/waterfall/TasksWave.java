@@ -87,6 +87,66 @@ public interface TasksWave<E extends Enum<E>, S extends FlowStage<E>, L extends
      */
     public Map<String, Object> scratchpad();
 
+    /**
+     * Value of a typed key in the scratchpad, without hashing its name when the scratchpad is made of WaveSlots
+     *
+     * @param <T> type of the value
+     * @param key typed key
+     * @return the value or null if missing
+     */
+    public default <T> T scratch(WaveKey<T> key) {
+        if ( this.scratchpad() instanceof WaveSlots slots ) {
+            return slots.get( key );
+        }
+
+        return key.type().cast( this.scratchpad().get( key.name() ) );
+    }
+
+    /**
+     * Store the value of a typed key in the scratchpad
+     *
+     * @param <T>   type of the value
+     * @param key   typed key
+     * @param value value to store
+     */
+    public default <T> void putScratch(WaveKey<T> key, T value) {
+        if ( this.scratchpad() instanceof WaveSlots slots ) {
+            slots.put( key, value );
+        } else {
+            this.scratchpad().put( key.name(), value );
+        }
+    }
+
+    /**
+     * Value of a typed key in the resources, without hashing its name when the resources are made of WaveSlots
+     *
+     * @param <T> type of the value
+     * @param key typed key
+     * @return the value or null if missing
+     */
+    public default <T> T resource(WaveKey<T> key) {
+        if ( this.resources() instanceof WaveSlots slots ) {
+            return slots.get( key );
+        }
+
+        return key.type().cast( this.resources().get( key.name() ) );
+    }
+
+    /**
+     * Store the value of a typed key in the resources
+     *
+     * @param <T>   type of the value
+     * @param key   typed key
+     * @param value value to store
+     */
+    public default <T> void putResource(WaveKey<T> key, T value) {
+        if ( this.resources() instanceof WaveSlots slots ) {
+            slots.put( key, value );
+        } else {
+            this.resources().put( key.name(), value );
+        }
+    }
+
     /**
      * Cursors for the execution
      *
@@ -109,6 +169,33 @@ public interface TasksWave<E extends Enum<E>, S extends FlowStage<E>, L extends
      */
     public List<TaskSnapshot> historyFor(long taskId);
 
+    /**
+     * Snapshots stored by the parent wave when this wave was forked from it, shared with the parent and never modified
+     *
+     * @return the inherited snapshots, empty if the wave was not forked
+     */
+    public default List<TaskSnapshot> inheritedHistory() {
+        return List.of();
+    }
+
+    /**
+     * Find the latest snapshot of a stage in the history inherited from the parent wave
+     *
+     * @param stageId identifier of the stage
+     * @return latest snapshot of the stage in the parent, or null if the parent had none
+     */
+    public default TaskSnapshot inheritedSnapshotOfStage(long stageId) {
+        var inherited = this.inheritedHistory();
+
+        for ( int i = inherited.size() - 1; i >= 0; i-- ) {
+            if ( inherited.get( i ).stageId() == stageId ) {
+                return inherited.get( i );
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Find latest snapshot by it's stage id
      *
@@ -155,6 +242,16 @@ public interface TasksWave<E extends Enum<E>, S extends FlowStage<E>, L extends
         return map;
     }
 
+    /**
+     * Latest snapshot by task id as a read only map, waves with an index return a view kept up to date instead of a
+     * copy
+     *
+     * @return the latest snapshot of every task
+     */
+    public default Map<Long, TaskSnapshot> latestByTaskView() {
+        return this.latestSnapshotByTask();
+    }
+
     /**
      * Check if exists a related task for the speficied stage
      *
@@ -210,6 +307,14 @@ public interface TasksWave<E extends Enum<E>, S extends FlowStage<E>, L extends
             return DelayDate.none();
         }
 
+        if ( incomings instanceof DelayOrder sorted && incomings instanceof List<L> links ) {
+            var order = sorted.delayOrder();
+
+            if ( order != null ) {
+                return this.selectSortedDelay( policy, links, order, target );
+            }
+        }
+
         Delay delay = policy == DelayPolicy.SHORTEST_DELAY ? DelayDate.max() : DelayDate.none();
 
         for ( var i : incomings ) {
@@ -234,6 +339,30 @@ public interface TasksWave<E extends Enum<E>, S extends FlowStage<E>, L extends
         return delay;
     }
 
+    /**
+     * Scan the links in order of delay and stop at the first finished with the target result
+     *
+     * @param policy    delay policy of the stage
+     * @param incomings links entering the stage
+     * @param order     positions of the links sorted by increasing delay
+     * @param target    result expected from the source stage
+     * @return the delay of the first link found, or the same fallback of selectDelayFor
+     */
+    private Delay selectSortedDelay(DelayPolicy policy, List<L> incomings, int[] order, TaskResult target) {
+        var shortest = policy == DelayPolicy.SHORTEST_DELAY;
+
+        for ( int k = 0; k < order.length; k++ ) {
+            var link = incomings.get( order[shortest ? k : order.length - 1 - k] );
+            var status = this.snapshotOfStage( link.from() );
+
+            if ( status.status().isFinished() && status.result() == target ) {
+                return link.delay();
+            }
+        }
+
+        return shortest ? DelayDate.max() : DelayDate.none();
+    }
+
     public default DependenciesInfo queryDependenciesInfo(Collection<Long> stagesId) {
         var list = new ArrayList<TaskSnapshot>();
 
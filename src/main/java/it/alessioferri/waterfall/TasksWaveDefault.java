@@ -40,7 +40,6 @@ package it.alessioferri.waterfall;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -57,7 +56,7 @@ public record TasksWaveDefault<E extends Enum<E>, B extends FlowStage<E>, L exte
 
     public static <E extends Enum<E>, B extends FlowStage<E>, L extends Link> TasksWaveDefault<E, B, L> initWave(
             long waveId, long parentWaveId) {
-        return new TasksWaveDefault<>( waveId, parentWaveId, LocalDate.now(), new HashMap<>(), new HashMap<>(),
+        return new TasksWaveDefault<>( waveId, parentWaveId, LocalDate.now(), new WaveSlots(), new WaveSlots(),
                 new ArrayList<>(), new ArrayList<>() );
     }
 
@@ -0,0 +1,139 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TasksWave backed by an IndexedHistory, latest snapshots by stage or by task are found in constant time. Cursors are
+ * kept in a CursorFrontier. A forked wave shares the history stored by its parent at the time of the fork, its own
+ * snapshots are stored apart.
+ *
+ * @author Alessio
+ * @param <E>
+ * @param <B>
+ * @param <L>
+ */
+public record TasksWaveIndexed<E extends Enum<E>, B extends FlowStage<E>, L extends Link>(long waveId,
+        long parentWaveId, LocalDate startedAt, Map<String, Object> resources, Map<String, Object> scratchpad,
+        IndexedHistory history, CursorFrontier cursors, List<TaskSnapshot> inheritedHistory)
+        implements TasksWave<E, B, L> {
+
+    public static <E extends Enum<E>, B extends FlowStage<E>, L extends Link> TasksWaveIndexed<E, B, L> initWave(
+            long waveId, long parentWaveId) {
+        return initWave( waveId, parentWaveId, HistoryStore.onHeap() );
+    }
+
+    public static <E extends Enum<E>, B extends FlowStage<E>, L extends Link> TasksWaveIndexed<E, B, L> initWave(
+            long waveId, long parentWaveId, HistoryStore store) {
+        return initWave( waveId, parentWaveId, store, RetentionPolicy.keepAll() );
+    }
+
+    public static <E extends Enum<E>, B extends FlowStage<E>, L extends Link> TasksWaveIndexed<E, B, L> initWave(
+            long waveId, long parentWaveId, HistoryStore store, RetentionPolicy retention) {
+        return forkWave( waveId, parentWaveId, store, retention, List.of() );
+    }
+
+    /**
+     * Create a wave sharing the history of its parent
+     *
+     * @param waveId       id of the wave
+     * @param parentWaveId id of the parent wave
+     * @param store        empty store for the snapshots of the new wave
+     * @param retention    retention policy of the new wave
+     * @param inherited    immutable snapshots of the parent, shared and never copied
+     * @return the new wave
+     */
+    public static <E extends Enum<E>, B extends FlowStage<E>, L extends Link> TasksWaveIndexed<E, B, L> forkWave(
+            long waveId, long parentWaveId, HistoryStore store, RetentionPolicy retention,
+            List<TaskSnapshot> inherited) {
+        return new TasksWaveIndexed<>( waveId, parentWaveId, LocalDate.now(), new WaveSlots(), new WaveSlots(),
+                new IndexedHistory( store, retention ), new CursorFrontier(), inherited );
+    }
+
+    @Override
+    public List<TaskSnapshot> historyFor(long taskId) {
+        return this.history.historyOfTask( taskId );
+    }
+
+    @Override
+    public HashMap<Long, TaskSnapshot> latestSnapshotByTask() {
+        return new HashMap<>( this.history.latestByTask() );
+    }
+
+    @Override
+    public Map<Long, TaskSnapshot> latestByTaskView() {
+        return this.history.latestByTask();
+    }
+
+    @Override
+    public void addSnapshot(TaskSnapshot snapshot) {
+        this.history.add( snapshot );
+    }
+
+    @Override
+    public TasksWave<E, B, L> withWaveId(long waveId) {
+        return new TasksWaveIndexed<>( waveId, parentWaveId, startedAt, resources, scratchpad, history, cursors,
+                inheritedHistory );
+    }
+
+    @Override
+    public TaskSnapshot snapshotOfStage(long stageId) {
+        var latest = this.history.latestOfStage( stageId );
+
+        if ( latest != null ) {
+            return latest;
+        }
+
+        throw new RuntimeException(
+                "cannot find stage id, you did something wrong to the wave state or you are using the wrong API" );
+    }
+
+    @Override
+    public TaskSnapshot snapshotOfTask(long taskId) {
+        var latest = this.history.latestOfTask( taskId );
+
+        if ( latest != null ) {
+            return latest;
+        }
+
+        throw new RuntimeException(
+                "cannot find task id, you did something wrong to the wave state or you are using the wrong API" );
+    }
+
+    @Override
+    public TaskSnapshot inheritedSnapshotOfStage(long stageId) {
+        if ( this.inheritedHistory instanceof SnapshotLog log ) {
+            return log.latestOfStage( stageId );
+        }
+
+        return TasksWave.super.inheritedSnapshotOfStage( stageId );
+    }
+
+    @Override
+    public boolean hasRelatedTask(long stageId) {
+        return this.history.hasRelatedTask( stageId );
+    }
+
+}
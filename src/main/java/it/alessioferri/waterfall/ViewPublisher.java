@@ -0,0 +1,208 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publisher of the views of a scheduler. The scheduler thread publishes a new SchedulerView after every update, any
+ * other thread reads the latest one without locks. Only the waves touched since the previous view are looked at, the
+ * others keep their WaveView and the list of the views shares its chunks with the previous one. The history of an
+ * indexed wave is copied only from where the previous view stopped.
+ *
+ * @author Alessio
+ */
+public final class ViewPublisher {
+
+    private final AtomicReference<SchedulerView> current;
+    private final List<WaveState> states;
+    private final BitSet touched;
+    private long revision;
+
+    ViewPublisher() {
+        this.current = new AtomicReference<>( new SchedulerView( 0, SharedList.empty() ) );
+        this.states = new ArrayList<>();
+        this.touched = new BitSet();
+        this.revision = 0;
+    }
+
+    /**
+     * Latest published view
+     *
+     * @return the view, never null
+     */
+    public SchedulerView current() {
+        return this.current.get();
+    }
+
+    /**
+     * Mark a wave as changed, its view is taken again by the next publish. New waves must be touched too.
+     *
+     * @param position position of the wave in the scheduler
+     */
+    void touch(int position) {
+        this.touched.set( position );
+    }
+
+    /**
+     * Publish the state of the waves touched since the previous view, to be called only by the thread updating them
+     *
+     * @param waves waves of the scheduler
+     */
+    void publish(List<? extends TasksWave<?, ?, ?>> waves) {
+        var published = ( SharedList<WaveView> ) this.current.get().waves();
+        var views = published;
+
+        for ( int i = this.touched.nextSetBit( 0 ); i >= 0; i = this.touched.nextSetBit( i + 1 ) ) {
+            var state = this.stateAt( i );
+            state.update( waves.get( i ) );
+
+            // new waves are touched too, so the positions grow one at a time
+            if ( i >= views.size() || views.get( i ) != state.view ) {
+                views = views.with( i, state.view );
+            }
+        }
+
+        this.touched.clear();
+
+        if ( views != published ) {
+            this.revision++;
+            this.current.set( new SchedulerView( this.revision, views ) );
+        }
+    }
+
+    /**
+     * Immutable copy of the snapshots stored by a wave, sharing its chunks with the views of the wave
+     *
+     * @param position position of the wave in the scheduler
+     * @param wave     wave to copy
+     * @return the stored history of the wave, synthesized skips excluded
+     */
+    SnapshotLog storedHistory(int position, TasksWave<?, ?, ?> wave) {
+        var state = this.stateAt( position );
+        state.update( wave );
+
+        if ( state.stored == null ) {
+            var history = List.copyOf( wave.history() );
+            return SnapshotLog.empty().appended( history, 0, history.size() );
+        }
+
+        return state.stored;
+    }
+
+    private WaveState stateAt(int position) {
+        while ( this.states.size() <= position ) {
+            this.states.add( new WaveState() );
+        }
+
+        return this.states.get( position );
+    }
+
+    /**
+     * Last view of a wave and the revisions it was taken at
+     */
+    private static final class WaveState {
+
+        private TasksWave<?, ?, ?> wave;
+        private WaveView view;
+        private int historyRevision;
+        private int cursorRevision;
+        private int rewrites;
+        private SnapshotLog stored;
+        private List<TaskSnapshot> skipped;
+
+        /**
+         * Take a new view of the wave if it changed since the last one
+         *
+         * @param wave wave at the same position as before
+         */
+        void update(TasksWave<?, ?, ?> wave) {
+            if ( !( wave instanceof TasksWaveIndexed<?, ?, ?> indexed ) ) {
+                this.wave = wave;
+                this.view = WaveView.of( wave );
+                this.stored = null;
+                return;
+            }
+
+            var history = indexed.history();
+            var cursors = indexed.cursors();
+            var known = this.wave == wave;
+
+            if ( known && history.revision() == this.historyRevision && cursors.revision() == this.cursorRevision ) {
+                return;
+            }
+
+            var storedCount = history.storedCount();
+
+            if ( !known || history.rewrites() != this.rewrites ) {
+                this.stored = SnapshotLog.empty().appended( history, 0, storedCount );
+                this.skipped = List.copyOf( history.skippedSnapshots() );
+            } else {
+                this.stored = this.stored.appended( history, this.stored.size(), storedCount );
+            }
+
+            var cursorList = known && cursors.revision() == this.cursorRevision ? this.view.cursors()
+                    : List.copyOf( cursors );
+
+            this.wave = wave;
+            this.view = new WaveView( wave.waveId(), wave.parentWaveId(), wave.startedAt(),
+                    this.skipped.isEmpty() ? this.stored : new Joined( this.stored, this.skipped ), cursorList );
+            this.historyRevision = history.revision();
+            this.cursorRevision = cursors.revision();
+            this.rewrites = history.rewrites();
+        }
+
+    }
+
+    /**
+     * Immutable concatenation of the stored snapshots and the synthesized skips
+     */
+    private static final class Joined extends AbstractList<TaskSnapshot> implements RandomAccess {
+
+        private final List<TaskSnapshot> head;
+        private final List<TaskSnapshot> tail;
+
+        Joined(List<TaskSnapshot> head, List<TaskSnapshot> tail) {
+            this.head = head;
+            this.tail = tail;
+        }
+
+        @Override
+        public TaskSnapshot get(int index) {
+            Objects.checkIndex( index, this.size() );
+            var split = this.head.size();
+            return index < split ? this.head.get( index ) : this.tail.get( index - split );
+        }
+
+        @Override
+        public int size() {
+            return this.head.size() + this.tail.size();
+        }
+
+    }
+
+}
@@ -0,0 +1,111 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Typed key of a value kept in the scratchpad or in the resources of a wave. Keys are registered once by name and each
+ * one owns a slot, so a lookup through the key is an array access instead of a string hash. The same name always maps
+ * to the same key and to the same slot. Registering a name never hides what the maps of the waves already hold: the
+ * values put by name before, or of another type, stay reachable through WaveSlots.
+ *
+ * @author Alessio
+ * @param <T> type of the value
+ */
+public final class WaveKey<T> {
+
+    private static final Map<String, WaveKey<?>> REGISTRY = new ConcurrentHashMap<>();
+    private static final AtomicInteger SLOTS = new AtomicInteger();
+
+    private final String name;
+    private final Class<T> type;
+    private final int slot;
+
+    private WaveKey(String name, Class<T> type, int slot) {
+        this.name = name;
+        this.type = type;
+        this.slot = slot;
+    }
+
+    /**
+     * Register a key, or get the one already registered with the same name
+     *
+     * @param <T>  type of the value
+     * @param name name of the key, also used by the map views of the wave
+     * @param type type of the value
+     * @return the key
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> WaveKey<T> of(String name, Class<T> type) {
+        Objects.requireNonNull( name );
+        Objects.requireNonNull( type );
+
+        if ( type.isPrimitive() ) {
+            throw new IllegalArgumentException( "wave key " + name + " must use a boxed type" );
+        }
+
+        var key = REGISTRY.computeIfAbsent( name, n -> new WaveKey<>( n, type, SLOTS.getAndIncrement() ) );
+
+        if ( key.type != type ) {
+            throw new IllegalArgumentException(
+                    "wave key " + name + " is already registered as " + key.type.getName() );
+        }
+
+        return ( WaveKey<T> ) key;
+    }
+
+    /**
+     * Key registered with the name
+     *
+     * @param name name of the key
+     * @return the key or null if no key has the name
+     */
+    static WaveKey<?> named(String name) {
+        return REGISTRY.get( name );
+    }
+
+    public String name() {
+        return this.name;
+    }
+
+    public Class<T> type() {
+        return this.type;
+    }
+
+    /**
+     * Position of the value in the slots of a wave
+     *
+     * @return
+     */
+    int slot() {
+        return this.slot;
+    }
+
+    @Override
+    public String toString() {
+        return "WaveKey[" + this.name + ": " + this.type.getSimpleName() + "]";
+    }
+
+}
@@ -0,0 +1,346 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of the values of a wave, values of registered WaveKeys are kept in an array indexed by the key slot and every
+ * other name falls back to a hash map. Nothing is allocated until the first value is stored.
+ * <p>
+ * A name is kept in one place only. Values put by name that do not match the type of the key stay in the hash map, and
+ * so do the values stored before the key was registered: they are found by every lookup and moved to the slot by the
+ * next write of the key. Lookups never change the map.
+ *
+ * @author Alessio
+ */
+public final class WaveSlots extends AbstractMap<String, Object> {
+
+    /**
+     * Marker of a slot holding null, an empty slot is a missing value
+     */
+    private static final Object NULL = new Object();
+
+    private Object[] values;
+    private WaveKey<?>[] keys;
+    private int filled;
+    private Map<String, Object> others;
+
+    public WaveSlots() {
+        this.values = null;
+        this.keys = null;
+        this.filled = 0;
+        this.others = null;
+    }
+
+    /**
+     * Value of the key
+     *
+     * @param <T> type of the value
+     * @param key typed key
+     * @return the value or null if missing
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(WaveKey<T> key) {
+        var value = this.slotValue( key.slot() );
+
+        if ( value != null ) {
+            return value == NULL ? null : ( T ) value;
+        }
+
+        var other = this.others == null ? null : this.others.get( key.name() );
+        return key.type().isInstance( other ) ? ( T ) other : null;
+    }
+
+    /**
+     * Store the value of the key
+     *
+     * @param <T>   type of the value
+     * @param key   typed key
+     * @param value value to store
+     * @return the previous value or null if missing
+     */
+    public <T> T put(WaveKey<T> key, T value) {
+        var other = this.removeOther( key.name() );
+        var previous = this.store( key, value );
+
+        if ( previous == null && key.type().isInstance( other ) ) {
+            previous = other;
+        }
+
+        return key.type().cast( previous );
+    }
+
+    /**
+     * Remove the value of the key
+     *
+     * @param <T> type of the value
+     * @param key typed key
+     * @return the removed value or null if missing
+     */
+    public <T> T remove(WaveKey<T> key) {
+        var previous = this.get( key );
+        this.clearSlot( key.slot() );
+        this.removeOther( key.name() );
+        return previous;
+    }
+
+    @Override
+    public Object get(Object name) {
+        var key = name instanceof String s ? WaveKey.named( s ) : null;
+        var value = key != null ? this.slotValue( key.slot() ) : null;
+
+        if ( value != null ) {
+            return value == NULL ? null : value;
+        }
+
+        return this.others == null ? null : this.others.get( name );
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        var key = name instanceof String s ? WaveKey.named( s ) : null;
+
+        if ( key != null && this.slotValue( key.slot() ) != null ) {
+            return true;
+        }
+
+        return this.others != null && this.others.containsKey( name );
+    }
+
+    @Override
+    public Object put(String name, Object value) {
+        var key = WaveKey.named( name );
+
+        if ( key != null && ( value == null || key.type().isInstance( value ) ) ) {
+            var other = this.removeOther( name );
+            var previous = this.store( key, value );
+            return previous != null ? previous : other;
+        }
+
+        Object previous = null;
+
+        // a value of another type than the key stays in the hash map
+        if ( key != null ) {
+            var slotted = this.slotValue( key.slot() );
+            previous = slotted == NULL ? null : slotted;
+            this.clearSlot( key.slot() );
+        }
+
+        if ( this.others == null ) {
+            this.others = new HashMap<>();
+        }
+
+        var other = this.others.put( name, value );
+        return previous != null ? previous : other;
+    }
+
+    @Override
+    public Object remove(Object name) {
+        var key = name instanceof String s ? WaveKey.named( s ) : null;
+        Object previous = null;
+
+        if ( key != null ) {
+            var slotted = this.slotValue( key.slot() );
+            previous = slotted == NULL ? null : slotted;
+            this.clearSlot( key.slot() );
+        }
+
+        var other = this.removeOther( name );
+        return previous != null ? previous : other;
+    }
+
+    @Override
+    public int size() {
+        return this.filled + ( this.others == null ? 0 : this.others.size() );
+    }
+
+    @Override
+    public void clear() {
+        if ( this.values != null ) {
+            Arrays.fill( this.values, null );
+        }
+
+        this.filled = 0;
+
+        if ( this.others != null ) {
+            this.others.clear();
+        }
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<>() {
+
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return WaveSlots.this.size();
+            }
+
+        };
+    }
+
+    private Object store(WaveKey<?> key, Object value) {
+        if ( value != null && !key.type().isInstance( value ) ) {
+            throw new IllegalArgumentException( "wave key " + key.name() + " expects a " + key.type().getName() );
+        }
+
+        var slot = key.slot();
+
+        if ( this.values == null ) {
+            this.values = new Object[Math.max( 8, slot + 1 )];
+            this.keys = new WaveKey<?>[this.values.length];
+        } else if ( slot >= this.values.length ) {
+            var capacity = Math.max( this.values.length * 2, slot + 1 );
+            this.values = Arrays.copyOf( this.values, capacity );
+            this.keys = Arrays.copyOf( this.keys, capacity );
+        }
+
+        var previous = this.values[slot];
+
+        if ( previous == null ) {
+            this.filled++;
+        }
+
+        this.values[slot] = value == null ? NULL : value;
+        this.keys[slot] = key;
+        return previous == NULL ? null : previous;
+    }
+
+    /**
+     * Raw content of a slot
+     *
+     * @param slot slot of a key
+     * @return null if the slot is empty, NULL if it holds null
+     */
+    private Object slotValue(int slot) {
+        return this.values == null || slot >= this.values.length ? null : this.values[slot];
+    }
+
+    private Object removeOther(Object name) {
+        return this.others == null ? null : this.others.remove( name );
+    }
+
+    private void clearSlot(int slot) {
+        if ( this.values != null && slot < this.values.length && this.values[slot] != null ) {
+            this.values[slot] = null;
+            this.filled--;
+        }
+    }
+
+    /**
+     * Visit the filled slots first and then the other names
+     */
+    private final class EntryIterator implements Iterator<Entry<String, Object>> {
+
+        private int next;
+        private int last;
+        private Iterator<Entry<String, Object>> rest;
+
+        EntryIterator() {
+            this.next = this.skipEmpty( 0 );
+            this.last = -1;
+            this.rest = null;
+        }
+
+        private int skipEmpty(int slot) {
+            var values = WaveSlots.this.values;
+
+            while ( values != null && slot < values.length && values[slot] == null ) {
+                slot++;
+            }
+
+            return values == null ? 0 : slot;
+        }
+
+        private boolean inSlots() {
+            var values = WaveSlots.this.values;
+            return values != null && this.next < values.length;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if ( this.inSlots() ) {
+                return true;
+            }
+
+            if ( this.rest == null ) {
+                var others = WaveSlots.this.others;
+
+                if ( others == null ) {
+                    return false;
+                }
+
+                this.rest = others.entrySet().iterator();
+            }
+
+            return this.rest.hasNext();
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if ( !this.hasNext() ) {
+                throw new NoSuchElementException();
+            }
+
+            if ( this.rest != null ) {
+                this.last = -1;
+                return this.rest.next();
+            }
+
+            var slot = this.next;
+            var value = WaveSlots.this.values[slot];
+
+            this.last = slot;
+            this.next = this.skipEmpty( slot + 1 );
+            return new SimpleImmutableEntry<>( WaveSlots.this.keys[slot].name(), value == NULL ? null : value );
+        }
+
+        @Override
+        public void remove() {
+            if ( this.rest != null && this.last < 0 ) {
+                this.rest.remove();
+                return;
+            }
+
+            if ( this.last < 0 ) {
+                throw new IllegalStateException();
+            }
+
+            WaveSlots.this.clearSlot( this.last );
+            this.last = -1;
+        }
+
+    }
+
+}
@@ -0,0 +1,54 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Immutable copy of the state of a wave, safe to read from any thread while the scheduler keeps running
+ *
+ * @author Alessio
+ */
+public record WaveView(long waveId, long parentWaveId, LocalDate startedAt, List<TaskSnapshot> history,
+        List<Long> cursors) {
+
+    /**
+     * Check if the wave was still running when the view was taken
+     *
+     * @return true if the wave had cursors
+     */
+    public boolean isRunning() {
+        return !this.cursors.isEmpty();
+    }
+
+    /**
+     * Copy the state of any wave
+     *
+     * @param wave wave to copy
+     * @return the view of the wave
+     */
+    public static WaveView of(TasksWave<?, ?, ?> wave) {
+        return new WaveView( wave.waveId(), wave.parentWaveId(), wave.startedAt(), List.copyOf( wave.history() ),
+                List.copyOf( wave.cursors() ) );
+    }
+
+}
@@ -0,0 +1,88 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Alessio
+ */
+public class CachingFlowPlanTest {
+
+    private static TestPlan chain(int length) {
+        var plan = TestPlan.empty( "Chain" );
+
+        for ( int i = 0; i < length; i++ ) {
+            var kind = i == 0 ? StageKind.START : StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS;
+            plan.stages().add( new ImmediateSuccess( i, kind, DelayPolicy.SHORTEST_DELAY ) );
+            if ( i > 0 ) {
+                plan.links().add( new TestLink( i - 1, i, DelayDate.none() ) );
+            }
+        }
+
+        return plan;
+    }
+
+    @Test
+    public void testPrefetchServesLookups() {
+        var source = chain( 10 );
+        var plan = new CachingFlowPlan<>( source, 1000 );
+
+        plan.prefetch( List.of( 2L, 3L, 4L ) );
+        Assertions.assertEquals( 0, plan.hits() );
+
+        for ( long id = 2; id <= 4; id++ ) {
+            var stage = plan.stageById( id );
+            Assertions.assertEquals( source.stageById( id ), stage );
+            Assertions.assertEquals( source.outgoings( stage ), plan.outgoings( stage ) );
+            Assertions.assertEquals( source.incomings( stage ), plan.incomings( stage ) );
+        }
+
+        Assertions.assertEquals( 9, plan.hits() );
+        Assertions.assertEquals( 0, plan.misses() );
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        var source = chain( 10 );
+        var plan = new CachingFlowPlan<>( source, 3 );
+
+        plan.stageById( 1 );
+        plan.stageById( 2 );
+        plan.stageById( 3 );
+        plan.stageById( 1 );
+        plan.stageById( 4 );
+
+        Assertions.assertEquals( 3, plan.weight() );
+        Assertions.assertEquals( 1, plan.hits() );
+
+        plan.stageById( 1 );
+        plan.stageById( 2 );
+
+        Assertions.assertEquals( 2, plan.hits() );
+        Assertions.assertEquals( 5, plan.misses() );
+    }
+
+}
@@ -0,0 +1,327 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Alessio
+ */
+public class CompiledFlowPlanTest {
+
+    private static TestPlan diamond() {
+        var plan = TestPlan.empty( "Diamond" );
+        plan.stages().add( new ImmediateSuccess( 10, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 20, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 30, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 40, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 10 ), plan.stageById( 20 ) );
+        plan.link( plan.stageById( 10 ), plan.stageById( 30 ) );
+        plan.link( plan.stageById( 20 ), plan.stageById( 40 ) );
+        plan.link( plan.stageById( 30 ), plan.stageById( 40 ) );
+        plan.link( plan.stageById( 40 ), plan.stageById( 10 ), new DelayDate( 0, 0, 1 ) );
+
+        return plan;
+    }
+
+    /**
+     * Root plan 1 -> 2 -> 3 where 2 stands for the outer plan, the stage 12 of the outer plan stands for the inner one
+     */
+    private static TestComposer nesting() {
+        var outer = TestPlan.empty( "Outer" );
+        outer.stages().add( new ImmediateSuccess( 11, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        outer.stages().add( new ImmediateSuccess( 12, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        outer.stages().add( new ImmediateSuccess( 13, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        outer.link( outer.stageById( 11 ), outer.stageById( 12 ) );
+        outer.link( outer.stageById( 11 ), outer.stageById( 13 ) );
+        outer.link( outer.stageById( 12 ), outer.stageById( 13 ) );
+
+        var inner = TestPlan.empty( "Inner" );
+        inner.stages().add( new ImmediateSuccess( 21, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        inner.stages().add( new ImmediateSuccess( 22, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        inner.link( inner.stageById( 21 ), inner.stageById( 22 ) );
+
+        var composer = TestComposer.empty();
+        composer.subPlans().put( 2L, outer );
+        composer.subPlans().put( 12L, inner );
+        return composer;
+    }
+
+    static CompositeFlowPlan<StageKind, Stage, TestLink> nested() {
+        var root = TestPlan.empty( "Root" );
+        root.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        root.stages().add( new ImmediateSuccess( 2, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        root.stages().add( new ImmediateSuccess( 3, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        root.link( root.stageById( 1 ), root.stageById( 2 ) );
+        root.link( root.stageById( 2 ), root.stageById( 3 ) );
+
+        return CompositeFlowPlan.of( root, nesting() );
+    }
+
+    @Test
+    public void testAdjacencyMatchesSource() {
+        var plan = diamond();
+        var compiled = CompiledFlowPlan.compile( plan );
+
+        Assertions.assertEquals( 4, compiled.stageCount() );
+        Assertions.assertEquals( 5, compiled.linkCount() );
+        Assertions.assertEquals( -1, compiled.indexOf( 50 ) );
+
+        for ( var stage : plan.stages() ) {
+            Assertions.assertEquals( stage, compiled.stageById( stage.stageId() ) );
+            Assertions.assertEquals( plan.outgoings( stage ), new ArrayList<>( compiled.outgoings( stage ) ) );
+            Assertions.assertEquals( plan.incomings( stage ), new ArrayList<>( compiled.incomings( stage ) ) );
+        }
+
+        Assertions.assertEquals( plan.startSet(), compiled.startSet() );
+        Assertions.assertSame( compiled, CompiledFlowPlan.compile( compiled ) );
+    }
+
+    @Test
+    public void testReachabilityOnLongChain() {
+        var plan = TestPlan.empty( "Chain" );
+        int length = 100_000;
+
+        for ( int i = 0; i < length; i++ ) {
+            var kind = i == 0 ? StageKind.START : StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS;
+            plan.stages().add( new ImmediateSuccess( i, kind, DelayPolicy.SHORTEST_DELAY ) );
+            if ( i > 0 ) {
+                plan.links().add( new TestLink( i - 1, i, DelayDate.none() ) );
+            }
+        }
+
+        var compiled = CompiledFlowPlan.compile( plan );
+
+        var fromStart = compiled.reachableFrom( new int[] { 0 } );
+        Assertions.assertEquals( length, fromStart.cardinality() );
+        Assertions.assertSame( fromStart, compiled.reachableFrom( new int[] { 0, 0 } ) );
+
+        var fromMiddle = compiled.reachableFrom( new int[] { compiled.indexOf( length / 2 ) } );
+        Assertions.assertEquals( length / 2, fromMiddle.cardinality() );
+        Assertions.assertFalse( fromMiddle.get( 0 ) );
+    }
+
+    @Test
+    public void testOnlyLoopClosingLinksAreBackward() {
+        var plan = diamond();
+        plan.link( plan.stageById( 30 ), plan.stageById( 20 ) );
+
+        var compiled = CompiledFlowPlan.compile( plan );
+
+        for ( int l = 0; l < compiled.linkCount(); l++ ) {
+            var link = compiled.linkAt( l );
+            var closesLoop = link.from() == 40 && link.to() == 10;
+
+            Assertions.assertEquals( closesLoop, compiled.isBackward( l ), link.toString() );
+        }
+
+        for ( int s = 0; s < compiled.stageCount(); s++ ) {
+            Assertions.assertEquals( s, compiled.sequenceOf( compiled.stageAtSequence( s ) ) );
+        }
+    }
+
+    @Test
+    public void testCacheSharesAndEvicts() {
+        var cache = new CompiledPlanCache( 2 );
+
+        var first = cache.compile( PlanKey.of( "diamond", 1 ), CompiledFlowPlanTest::diamond );
+        Assertions.assertSame( first, cache.compile( PlanKey.of( "diamond", 1 ), CompiledFlowPlanTest::diamond ) );
+
+        cache.compile( PlanKey.of( "diamond", 2 ), CompiledFlowPlanTest::diamond );
+        cache.compile( PlanKey.of( "diamond", 1 ), CompiledFlowPlanTest::diamond );
+        cache.compile( PlanKey.of( "diamond", 3 ), CompiledFlowPlanTest::diamond );
+
+        Assertions.assertEquals( 2, cache.size() );
+        Assertions.assertEquals( 2, cache.hits() );
+        Assertions.assertEquals( 3, cache.misses() );
+        Assertions.assertSame( first, cache.compile( PlanKey.of( "diamond", 1 ), CompiledFlowPlanTest::diamond ) );
+    }
+
+    private static void assertSequenceRespected(IndexedFlowPlan<StageKind, Stage, TestLink> plan) {
+        for ( int l = 0; l < plan.linkCount(); l++ ) {
+            var from = plan.linkFrom( l );
+            var to = plan.linkTo( l );
+            var live = !plan.isRemoved( from ) && plan.outgoings( plan.stageAt( from ) ).contains( plan.linkAt( l ) );
+
+            if ( live && !plan.isBackward( l ) ) {
+                Assertions.assertTrue( plan.sequenceOf( from ) < plan.sequenceOf( to ), plan.linkAt( l ).toString() );
+            }
+        }
+    }
+
+    @Test
+    public void testLivePlanKeepsSequenceOnEdits() {
+        var live = new LiveFlowPlan<>( CompiledFlowPlan.compile( diamond() ) );
+        Assertions.assertFalse( live.isEdited() );
+
+        live.addStage( new ImmediateSuccess( 50, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        live.addStage( new ImmediateSuccess( 60, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+
+        // 60 -> 50 -> 20 forces 60 and 50 before 20 in the sequence
+        var a = live.addLink( new TestLink( 50, 20, DelayDate.none() ) );
+        var b = live.addLink( new TestLink( 60, 50, DelayDate.none() ) );
+        var c = live.addLink( new TestLink( 10, 60, DelayDate.none() ) );
+        Assertions.assertFalse( live.isBackward( a ) );
+        Assertions.assertFalse( live.isBackward( b ) );
+        Assertions.assertFalse( live.isBackward( c ) );
+        assertSequenceRespected( live );
+
+        // 20 -> 60 closes the loop 60 -> 50 -> 20 -> 60
+        var loop = live.addLink( new TestLink( 20, 60, DelayDate.none() ) );
+        Assertions.assertTrue( live.isBackward( loop ) );
+        assertSequenceRespected( live );
+
+        // without 50 -> 20 there is no loop anymore
+        Assertions.assertTrue( live.removeLink( new TestLink( 50, 20, DelayDate.none() ) ) );
+        Assertions.assertFalse( live.isBackward( loop ) );
+        assertSequenceRespected( live );
+
+        var reachable = live.reachableFrom( new int[] { live.indexOf( 60 ) } );
+        Assertions.assertFalse( reachable.get( live.indexOf( 20 ) ) );
+        live.addLink( new TestLink( 50, 30, DelayDate.none() ) );
+        Assertions.assertTrue( live.reachableFrom( new int[] { live.indexOf( 60 ) } ).get( live.indexOf( 40 ) ) );
+
+        Assertions.assertTrue( live.removeStage( 30 ) );
+        Assertions.assertEquals( -1, live.indexOf( 30 ) );
+        Assertions.assertEquals( 5, live.stages().size() );
+        Assertions.assertEquals( 1, live.incomings( live.stageById( 40 ) ).size() );
+        assertSequenceRespected( live );
+    }
+
+    @Test
+    public void testLivePlanRechecksTheLoopsOfARemovedLink() {
+        var live = new LiveFlowPlan<>( CompiledFlowPlan.compile( diamond() ) );
+        var loop = live.linkCount() - 1;
+        Assertions.assertTrue( live.isBackward( loop ) );
+
+        // 40 -> 10 still closes the loop through 30
+        Assertions.assertTrue( live.removeLink( new TestLink( 10, 20, DelayDate.none() ) ) );
+        Assertions.assertTrue( live.isBackward( loop ) );
+        Assertions.assertTrue( live.removeLink( new TestLink( 20, 40, DelayDate.none() ) ) );
+        Assertions.assertTrue( live.isBackward( loop ) );
+
+        Assertions.assertTrue( live.removeLink( new TestLink( 30, 40, DelayDate.none() ) ) );
+        Assertions.assertFalse( live.isBackward( loop ) );
+        assertSequenceRespected( live );
+    }
+
+    @Test
+    public void testLivePlanKeepsLookupsAfterEdits() {
+        var live = new LiveFlowPlan<>( CompiledFlowPlan.compile( diamond() ) );
+        live.addStage( new ImmediateSuccess( 50, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+
+        var end = live.indexOf( 40 );
+        var deps = live.dependenciesOf( end );
+        Assertions.assertSame( deps, live.dependenciesOf( end ) );
+        Assertions.assertInstanceOf( DelayOrder.class, live.incomings( live.stageById( 40 ) ) );
+
+        live.addLink( new TestLink( 50, 40, new DelayDate( 0, 0, 2 ) ) );
+        Assertions.assertEquals( List.of( 20L, 30L, 50L ), live.dependenciesOf( end ) );
+
+        var incomings = live.incomings( live.stageById( 40 ) );
+        Assertions.assertSame( incomings, live.incomings( live.stageById( 40 ) ) );
+        Assertions.assertArrayEquals( new int[] { 0, 1, 2 }, ( ( DelayOrder ) incomings ).delayOrder() );
+    }
+
+    @Test
+    public void testUnknownStageIsRejected() {
+        var plan = diamond();
+        plan.links().add( new TestLink( 40, 50, DelayDate.none() ) );
+
+        Assertions.assertThrows( RuntimeException.class, () -> CompiledFlowPlan.compile( plan ) );
+    }
+
+    @Test
+    public void testCompositeIsFlattened() {
+        var composite = nested();
+        var flat = CompiledFlowPlan.compile( composite );
+
+        Assertions.assertEquals( 3, composite.root().stages().size() );
+        // the composite shows the same flattened graph it compiles to
+        Assertions.assertEquals( 6, composite.stages().size() );
+        Assertions.assertEquals( 6, composite.links().size() );
+        Assertions.assertEquals( 4, composite.incomings( composite.stageById( 7 ) ).iterator().next().from() );
+        Assertions.assertEquals( 6, flat.stageCount() );
+        Assertions.assertEquals( 6, flat.linkCount() );
+        var ids = flat.stages().stream().map( Stage::stageId ).toList();
+        Assertions.assertEquals( List.of( 1L, 4L, 5L, 6L, 7L, 3L ), ids );
+        Assertions.assertEquals( List.of( flat.stageById( 1 ) ), List.copyOf( flat.startSet() ) );
+
+        var follows = flat.outgoings( flat.stageById( 4 ) ).stream().map( TestLink::to ).sorted().toList();
+        Assertions.assertEquals( List.of( 5L, 7L ), follows );
+        Assertions.assertEquals( 4, flat.incomings( flat.stageById( 7 ) ).iterator().next().from() );
+        Assertions.assertEquals( 7, flat.incomings( flat.stageById( 3 ) ).iterator().next().from() );
+    }
+
+    @Test
+    public void testSelfIncludingCompositeIsRejected() {
+        var composite = nested();
+        var composer = ( TestComposer ) composite.composer();
+        composer.subPlans().put( 22L, ( TestPlan ) composite.root() );
+
+        Assertions.assertThrows( RuntimeException.class, () -> CompiledFlowPlan.compile( composite ) );
+    }
+
+    @Test
+    public void testSortedDelaysMatchDynamicSelection() {
+        var plan = TestPlan.empty( "Delays" );
+
+        for ( long id = 1; id <= 4; id++ ) {
+            plan.stages().add( new ImmediateSuccess( id, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        }
+        plan.stages().add( new ImmediateSuccess( 5, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 1 ), plan.stageById( 5 ), new DelayDate( 0, 0, 3 ) );
+        plan.link( plan.stageById( 2 ), plan.stageById( 5 ), new DelayDate( 0, 0, 1 ) );
+        plan.link( plan.stageById( 3 ), plan.stageById( 5 ), new DelayDate( 0, 0, 2 ) );
+        plan.link( plan.stageById( 4 ), plan.stageById( 5 ), new DelayDate( 0, 0, 5 ) );
+
+        var wave = TasksWaveDefault.<StageKind, Stage, TestLink>initWave( 0, -1 );
+        wave.addSnapshot( TaskSnapshot.succeeded( 1, 1 ) );
+        wave.addSnapshot( TaskSnapshot.failed( 2, 2 ) );
+        wave.addSnapshot( TaskSnapshot.succeeded( 3, 3 ) );
+        wave.addSnapshot( TaskSnapshot.scheduledNow( 4, 4 ) );
+
+        var compiled = CompiledFlowPlan.compile( plan );
+        var join = compiled.stageById( 5 );
+        var sorted = compiled.incomings( join );
+        var unsorted = new ArrayList<>( sorted );
+
+        for ( var policy : DelayPolicy.values() ) {
+            for ( var target : List.of( TaskResult.SUCCESS, TaskResult.FAIL, TaskResult.NONE ) ) {
+                var expected = wave.selectDelayFor( join, policy, unsorted, target );
+                Assertions.assertEquals( expected, wave.selectDelayFor( join, policy, sorted, target ) );
+            }
+        }
+
+        Assertions.assertEquals( new DelayDate( 0, 0, 2 ),
+                wave.selectDelayFor( join, DelayPolicy.SHORTEST_DELAY, sorted, TaskResult.SUCCESS ) );
+        Assertions.assertEquals( new DelayDate( 0, 0, 3 ),
+                wave.selectDelayFor( join, DelayPolicy.LONGEST_DELAY, sorted, TaskResult.SUCCESS ) );
+    }
+
+}
@@ -0,0 +1,98 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * @author Alessio
+ */
+public class PlanFormatTest {
+
+    @TempDir
+    Path folder;
+
+    private long nextId = 1;
+
+    private static TestPlan loop() {
+        var plan = TestPlan.empty( "Loop" );
+        plan.stages().add( new ImmediateSuccess( 7, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 3, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.LONGEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 5, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 7 ), plan.stageById( 3 ), new DelayDate( 0, 1, 2 ) );
+        plan.link( plan.stageById( 3 ), plan.stageById( 5 ) );
+        plan.link( plan.stageById( 5 ), plan.stageById( 7 ), new DelayDate( 0, 0, 1 ) );
+
+        return plan;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        var compiled = CompiledFlowPlan.compile( loop() );
+        var file = this.folder.resolve( "loop.plan" );
+
+        PlanFormat.write( compiled, file );
+
+        var mapped = MappedFlowPlan.<StageKind, Stage, TestLink>open( file, StageKind.class, ImmediateSuccess::new,
+                TestLink::new );
+
+        Assertions.assertEquals( compiled.title(), mapped.title() );
+        Assertions.assertEquals( compiled.stages(), mapped.stages() );
+        Assertions.assertEquals( compiled.links(), mapped.links() );
+        Assertions.assertEquals( compiled.startSet(), mapped.startSet() );
+        Assertions.assertEquals( compiled.sequenceStages(), mapped.sequenceStages() );
+        Assertions.assertEquals( -1, mapped.indexOf( 4 ) );
+
+        for ( int l = 0; l < compiled.linkCount(); l++ ) {
+            Assertions.assertEquals( compiled.isBackward( l ), mapped.isBackward( l ) );
+        }
+
+        for ( var stage : compiled.stages() ) {
+            Assertions.assertEquals( compiled.outgoings( stage ), mapped.outgoings( stage ) );
+            Assertions.assertEquals( compiled.incomings( stage ), mapped.incomings( stage ) );
+        }
+    }
+
+    @Test
+    public void testSchedulerRunsOnMappedPlan() throws IOException {
+        var file = this.folder.resolve( "loop.plan" );
+        PlanFormat.write( loop(), file );
+
+        var mapped = MappedFlowPlan.<StageKind, Stage, TestLink>open( file, StageKind.class, ImmediateSuccess::new,
+                TestLink::new );
+        var dispatcher = TestCallbacks.of( () -> this.nextId++ );
+        var sched = SchedulerDefault.kickoff( mapped, dispatcher, LoggerFactory.getLogger( PlanFormatTest.class ) );
+
+        Assertions.assertFalse( sched.plan().isEdited() );
+        Assertions.assertEquals( mapped.stages(), sched.plan().stages() );
+        Assertions.assertEquals( 1, sched.waves().size() );
+        Assertions.assertFalse( sched.isComplete() ); // stage 3 is delayed by its incoming link
+    }
+
+}
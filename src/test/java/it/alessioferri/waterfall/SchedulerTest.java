@@ -37,9 +37,26 @@ package it.alessioferri.waterfall;
  * limitations under the License.
  * #L%
  */
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -185,4 +202,586 @@ public class SchedulerTest {
         Assertions.assertFalse( sched.isComplete() );
     }
 
+    @Test
+    public void testLinkAddedWhileRunning() {
+        var plan = TestPlan.empty( "LiveEdit" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredSuccess( 3, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 1 ), plan.stageById( 3 ) );
+        plan.link( plan.stageById( 3 ), plan.stageById( 2 ) );
+
+        var dispatcher = TestCallbacks.of( this::supplyId );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log );
+
+        sched.addStage( new ImmediateSuccess( 4, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        sched.addLink( new TestLink( 3, 4, DelayDate.none() ) );
+
+        for ( int k = 0; k < 2; k++ ) {
+            sched.pollSnapshotsUpdates();
+            sched.updateWaves();
+        }
+
+        var wave = sched.waves().iterator().next();
+
+        Assertions.assertTrue( sched.isComplete() );
+        Assertions.assertTrue( wave.hasRelatedTask( 4 ) );
+        Assertions.assertTrue( wave.hasRelatedTask( 2 ) );
+    }
+
+    @Test
+    public void testCompositeRunsInOneWave() {
+        var plan = CompiledFlowPlanTest.nested();
+
+        var dispatcher = TestCallbacks.of( this::supplyId );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log );
+
+        for ( int k = 0; k < 2; k++ ) {
+            sched.pollSnapshotsUpdates();
+            sched.updateWaves();
+        }
+
+        var wave = sched.waves().iterator().next();
+
+        Assertions.assertEquals( 1, sched.waves().size() );
+        Assertions.assertTrue( sched.isComplete() );
+        Assertions.assertTrue( wave.hasRelatedTask( 6 ) );
+        Assertions.assertTrue( wave.hasRelatedTask( 3 ) );
+    }
+
+    @Test
+    public void testJoinIsScheduledOnce() {
+        var plan = TestPlan.empty( "FanIn" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+
+        for ( int i = 10; i < 110; i++ ) {
+            plan.stages().add( new DeferredSuccess( i, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+            plan.link( plan.stageById( 1 ), plan.stageById( i ) );
+            plan.link( plan.stageById( i ), plan.stageById( 2 ) );
+        }
+
+        var dispatcher = TestCallbacks.of( this::supplyId );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log );
+
+        for ( int k = 0; k < 2; k++ ) {
+            sched.pollSnapshotsUpdates();
+            sched.updateWaves();
+        }
+
+        var wave = sched.waves().iterator().next();
+        var joinTasks = wave.history().stream().filter( s -> s.stageId() == 2 ).map( TaskSnapshot::taskId ).distinct();
+
+        Assertions.assertTrue( sched.isComplete() );
+        Assertions.assertEquals( 1, joinTasks.count() );
+    }
+
+    @Test
+    public void testColumnarHistory() {
+        var plan = TestPlan.empty( "ColumnarHistory" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredSuccess( 3, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 1 ), plan.stageById( 3 ) );
+        plan.link( plan.stageById( 3 ), plan.stageById( 2 ) );
+
+        var dispatcher = TestCallbacks.of( this::supplyId );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+        var config = SchedulerConfig.defaults().withHistoryStore( HistoryStore::columnar );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log, config );
+
+        for ( int k = 0; k < 2; k++ ) {
+            sched.pollSnapshotsUpdates();
+            sched.updateWaves();
+        }
+
+        var wave = sched.waves().iterator().next();
+
+        Assertions.assertTrue( sched.isComplete() );
+        Assertions.assertEquals( TaskResult.SUCCESS, wave.snapshotOfStage( 2 ).result() );
+    }
+
+    @Test
+    public void testViewsArePublishedAfterUpdates() {
+        var plan = TestPlan.empty( "PublishedViews" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredSuccess( 3, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredSuccess( 4, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 1 ), plan.stageById( 3 ) );
+        plan.link( plan.stageById( 3 ), plan.stageById( 4 ) );
+        plan.link( plan.stageById( 4 ), plan.stageById( 2 ) );
+
+        var dispatcher = TestCallbacks.of( this::supplyId );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log );
+        var first = sched.view();
+        var firstHistory = List.copyOf( first.waves().get( 0 ).history() );
+
+        Assertions.assertFalse( first.isComplete() );
+        Assertions.assertEquals( List.of( 3L ), first.waves().get( 0 ).cursors() );
+        Assertions.assertEquals( List.copyOf( sched.waves().iterator().next().history() ), firstHistory );
+
+        for ( int k = 0; k < 2; k++ ) {
+            sched.pollSnapshotsUpdates();
+            sched.updateWaves();
+        }
+
+        var last = sched.view();
+
+        Assertions.assertTrue( last.isComplete() );
+        Assertions.assertTrue( last.revision() > first.revision() );
+        Assertions.assertEquals( List.copyOf( sched.waves().iterator().next().history() ), last.waves().get( 0 ).history() );
+        Assertions.assertEquals( firstHistory, first.waves().get( 0 ).history() );
+        Assertions.assertEquals( List.of( 3L ), first.waves().get( 0 ).cursors() );
+
+        sched.updateWaves();
+        Assertions.assertSame( last, sched.view() );
+    }
+
+    @Test
+    public void testRescheduledWaveSharesParentHistory() {
+        var plan = TestPlan.empty( "ForkedReschedule" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredFail( 3, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY  ) );
+        plan.stages().add( new DeferredSuccess( 4, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 1 ), plan.stageById( 3 ) );
+        plan.link( plan.stageById( 1 ), plan.stageById( 4 ) );
+        plan.link( plan.stageById( 4 ), plan.stageById( 2 ) );
+        plan.link( plan.stageById( 4 ), plan.stageById( 1 ), new DelayDate( 0, 0, 1 ) );
+
+        var dispatcher = TestCallbacks.of( this::supplyId );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log );
+        sched.pollSnapshotsUpdates();
+        sched.updateWaves();
+
+        var parent = sched.waves().get( 0 );
+        var child = sched.waves().get( 1 );
+        var inherited = List.copyOf( child.inheritedHistory() );
+
+        Assertions.assertEquals( 0, child.parentWaveId() );
+        Assertions.assertTrue( parent.inheritedHistory().isEmpty() );
+        Assertions.assertEquals( TaskResult.SUCCESS, child.inheritedSnapshotOfStage( 4 ).result() );
+        Assertions.assertEquals( parent.snapshotOfStage( 1 ), child.inheritedSnapshotOfStage( 1 ) );
+        Assertions.assertNull( child.inheritedSnapshotOfStage( 99 ) );
+        Assertions.assertNotEquals( parent.snapshotOfStage( 1 ).taskId(), child.snapshotOfStage( 1 ).taskId() );
+
+        for ( int k = 0; k < 2; k++ ) {
+            sched.pollSnapshotsUpdates();
+            sched.updateWaves();
+        }
+
+        Assertions.assertEquals( inherited, child.inheritedHistory() );
+        Assertions.assertEquals( inherited, parent.history().stream().limit( inherited.size() ).toList() );
+    }
+
+    @Test
+    public void testPushedUpdatesAdvanceOnlyTheirCursors() {
+        var plan = TestPlan.empty( "PushedUpdates" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredSuccess( 3, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredSuccess( 4, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 1 ), plan.stageById( 3 ) );
+        plan.link( plan.stageById( 1 ), plan.stageById( 4 ) );
+        plan.link( plan.stageById( 3 ), plan.stageById( 2 ) );
+        plan.link( plan.stageById( 4 ), plan.stageById( 2 ) );
+
+        var dispatcher = TestCallbacks.of( this::supplyId );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+        var config = SchedulerConfig.defaults().withPushUpdates( true );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log, config );
+        var wave = sched.waves().get( 0 );
+        var task3 = wave.snapshotOfStage( 3 ).taskId();
+        var task4 = wave.snapshotOfStage( 4 ).taskId();
+
+        Assertions.assertEquals( Set.of( 3L, 4L ), Set.copyOf( wave.cursors() ) );
+
+        // the update is applied by the next pass, not by the thread reporting it
+        sched.onTaskUpdate( 0, TaskSnapshot.succeeded( task3, 3 ) );
+        Assertions.assertFalse( wave.snapshotOfStage( 3 ).status().isFinished() );
+
+        sched.updateWaves();
+
+        Assertions.assertTrue( wave.snapshotOfStage( 3 ).status().isFinished() );
+        Assertions.assertEquals( List.of( 4L ), wave.cursors() );
+
+        sched.onTaskUpdate( 0, TaskSnapshot.succeeded( task4, 4 ) );
+        sched.updateWaves();
+
+        Assertions.assertTrue( sched.isComplete() );
+        Assertions.assertEquals( TaskResult.SUCCESS, wave.snapshotOfStage( 2 ).result() );
+    }
+
+    @Test
+    public void testPushedCursorReactivatedDuringItsPass() {
+        var plan = TestPlan.empty( "PushedReactivation" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredSuccess( 3, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredSuccess( 4, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 5, StageKind.EXECUTE_ONLY_IF_ANY_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 1 ), plan.stageById( 3 ) );
+        plan.link( plan.stageById( 1 ), plan.stageById( 4 ) );
+        plan.link( plan.stageById( 3 ), plan.stageById( 5 ), new DelayDate( 0, 0, 1 ) );
+        plan.link( plan.stageById( 4 ), plan.stageById( 5 ) );
+        plan.link( plan.stageById( 5 ), plan.stageById( 2 ) );
+
+        var dispatcher = TestCallbacks.of( this::supplyId );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+        var config = SchedulerConfig.defaults().withPushUpdates( true );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log, config );
+        var wave = sched.waves().get( 0 );
+
+        // the join waits a day for the first branch and becomes a cursor
+        sched.onTaskUpdate( 0, TaskSnapshot.succeeded( wave.snapshotOfStage( 3 ).taskId(), 3 ) );
+        sched.updateWaves();
+
+        Assertions.assertTrue( wave.cursors().contains( 5L ) );
+        Assertions.assertFalse( wave.snapshotOfStage( 5 ).status().isFinished() );
+
+        // the second branch activates the join again, with no delay it is done at once
+        sched.onTaskUpdate( 0, TaskSnapshot.succeeded( wave.snapshotOfStage( 4 ).taskId(), 4 ) );
+        sched.updateWaves();
+
+        Assertions.assertTrue( wave.snapshotOfStage( 5 ).status().isFinished() );
+
+        // no update is coming for the join, the change seen during the pass is enough
+        sched.updateWaves();
+
+        Assertions.assertTrue( wave.cursors().isEmpty() );
+        Assertions.assertTrue( sched.isComplete() );
+    }
+
+    @Test
+    public void testCopiedWaveKeepsBothListeners() {
+        this.assertCopiedWaveCompletes( SchedulerConfig.defaults() );
+    }
+
+    @Test
+    public void testCopiedWaveKeepsBothListenersInParallel() {
+        var pool = new ForkJoinPool( 4 );
+
+        try {
+            this.assertCopiedWaveCompletes( SchedulerConfig.defaults().withParallelPool( pool ) );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void assertCopiedWaveCompletes(SchedulerConfig config) {
+        var plan = TestPlan.empty( "CopiedWave" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredSuccess( 3, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredSuccess( 4, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 1 ), plan.stageById( 3 ) );
+        plan.link( plan.stageById( 3 ), plan.stageById( 4 ) );
+        plan.link( plan.stageById( 4 ), plan.stageById( 2 ) );
+
+        var dispatcher = WatchedCallbacks.of( TestCallbacks.of( this::supplyId ), 3, Map.of() );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log, config );
+
+        // the copy shares the history and the cursors of the first wave
+        Assertions.assertEquals( 2, sched.waves().size() );
+        Assertions.assertSame( sched.waves().get( 0 ).history(), sched.waves().get( 1 ).history() );
+
+        for ( int k = 0; k < 3; k++ ) {
+            sched.pollSnapshotsUpdates();
+            sched.updateWaves();
+        }
+
+        Assertions.assertTrue( sched.waves().get( 0 ).cursors().isEmpty() );
+        Assertions.assertTrue( sched.runningWaves().isEmpty() );
+        Assertions.assertTrue( sched.isComplete() );
+    }
+
+    @Test
+    public void testRunningWavesFollowTheCursors() {
+        var plan = TestPlan.empty( "RunningWaves" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredFail( 3, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY  ) );
+        plan.stages().add( new DeferredSuccess( 4, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 1 ), plan.stageById( 3 ) );
+        plan.link( plan.stageById( 1 ), plan.stageById( 4 ) );
+        plan.link( plan.stageById( 4 ), plan.stageById( 2 ) );
+        plan.link( plan.stageById( 4 ), plan.stageById( 1 ), new DelayDate( 0, 0, 1 ) );
+
+        var dispatcher = TestCallbacks.of( this::supplyId );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log );
+        var running = sched.runningWaves();
+
+        for ( int k = 0; k < 4; k++ ) {
+            var expected = sched.waves().stream().filter( TasksWave::hasUnresolvedTasks ).toList();
+
+            Assertions.assertSame( running, sched.runningWaves() );
+            Assertions.assertEquals( expected, List.copyOf( running ) );
+            Assertions.assertEquals( expected.isEmpty(), sched.isComplete() );
+
+            sched.pollSnapshotsUpdates();
+            sched.updateWaves();
+        }
+    }
+
+    @Test
+    public void testParallelPassMatchesSequentialPass() {
+        var sequential = this.runLoop( SchedulerConfig.defaults() );
+        var pool = new ForkJoinPool( 4 );
+
+        try {
+            var parallel = this.runLoop( SchedulerConfig.defaults().withParallelPool( pool ) );
+            var split = this.runLoop( SchedulerConfig.defaults().withParallelPool( pool ).withSplitFrontierAt( 1 ) );
+            Assertions.assertEquals( sequential, parallel );
+            Assertions.assertEquals( sequential, split );
+            Assertions.assertTrue( sequential.size() > 4 );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Run a looping plan for a few passes
+     *
+     * @param config configuration of the scheduler
+     * @return parent id and stage results of every wave, by wave id
+     */
+    private List<String> runLoop(SchedulerConfig config) {
+        var plan = TestPlan.empty( "Loop" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new DeferredFail( 3, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY  ) );
+        plan.stages().add( new DeferredSuccess( 4, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+
+        plan.link( plan.stageById( 1 ), plan.stageById( 3 ) );
+        plan.link( plan.stageById( 1 ), plan.stageById( 4 ) );
+        plan.link( plan.stageById( 4 ), plan.stageById( 2 ) );
+        plan.link( plan.stageById( 4 ), plan.stageById( 1 ), new DelayDate( 0, 0, 1 ) );
+
+        var ids = new AtomicLong();
+        var dispatcher = new TestCallbacks( ids::getAndIncrement, new ConcurrentHashMap<>() );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log, config );
+
+        for ( int k = 0; k < 6; k++ ) {
+            sched.pollSnapshotsUpdates();
+            sched.updateWaves();
+        }
+
+        var result = new ArrayList<String>();
+
+        for ( var w : sched.waves() ) {
+            var stages = new StringBuilder();
+
+            for ( long stageId = 1; stageId <= 4; stageId++ ) {
+                var snapshot = w.hasRelatedTask( stageId ) ? w.snapshotOfStage( stageId ) : null;
+                stages.append( snapshot == null ? "-" : snapshot.status() + "/" + snapshot.result() ).append( ' ' );
+            }
+
+            result.add( w.waveId() + " <- " + w.parentWaveId() + ": " + stages );
+        }
+
+        return result;
+    }
+
+    @Test
+    public void testSplitFrontierSchedulesJoinOnce() {
+        var plan = TestPlan.empty( "SplitFanIn" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+
+        for ( int i = 10; i < 210; i += 2 ) {
+            plan.stages().add( new DeferredSuccess( i, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+            plan.stages().add( new DeferredSuccess( i + 1, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+            plan.link( plan.stageById( 1 ), plan.stageById( i ) );
+            plan.link( plan.stageById( i ), plan.stageById( i + 1 ) );
+            plan.link( plan.stageById( i + 1 ), plan.stageById( 2 ) );
+        }
+
+        var ids = new AtomicLong();
+        var callbacks = new TestCallbacks( ids::getAndIncrement, new ConcurrentHashMap<>() );
+        // the first branch cannot finish before the last one runs somewhere else
+        var dispatcher = WatchedCallbacks.of( callbacks, -1, Map.of( 11L, 209L ) );
+        var threads = dispatcher.threads();
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+        var pool = new ForkJoinPool( 4 );
+
+        try {
+            var config = SchedulerConfig.defaults().withParallelPool( pool ).withSplitFrontierAt( 8 );
+            var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log, config );
+
+            for ( int k = 0; k < 4; k++ ) {
+                sched.pollSnapshotsUpdates();
+                sched.updateWaves();
+            }
+
+            var wave = sched.waves().get( 0 );
+            var joinTasks = wave.history().stream().filter( s -> s.stageId() == 2 ).map( TaskSnapshot::taskId ).distinct();
+
+            Assertions.assertTrue( sched.isComplete() );
+            Assertions.assertEquals( 1, joinTasks.count() );
+
+            for ( long stageId = 10; stageId < 210; stageId++ ) {
+                Assertions.assertEquals( TaskResult.SUCCESS, wave.snapshotOfStage( stageId ).result() );
+                // written to the scratchpad of a branch and merged into the wave
+                Assertions.assertEquals( Boolean.TRUE, wave.scratchpad().get( "scheduled." + stageId ) );
+            }
+
+            // the second stages are activated by the branches, on more than one thread
+            var branchThreads = new HashSet<Thread>();
+
+            for ( long stageId = 11; stageId < 210; stageId += 2 ) {
+                branchThreads.add( threads.get( stageId ) );
+            }
+
+            Assertions.assertTrue( branchThreads.size() > 1 );
+            Assertions.assertNotSame( threads.get( 11L ), threads.get( 209L ) );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testDiscardDeletesMappedHistories(@TempDir Path directory) throws IOException {
+        var plan = TestPlan.empty( "MappedHistories" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        plan.link( plan.stageById( 1 ), plan.stageById( 2 ) );
+
+        var dispatcher = TestCallbacks.of( this::supplyId );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+        var config = SchedulerConfig.defaults().withHistoryStore( MappedHistoryStore.inDirectory( directory ) );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log, config );
+
+        Assertions.assertTrue( sched.isComplete() );
+
+        try ( var files = Files.list( directory ) ) {
+            Assertions.assertEquals( 1, files.count() );
+        }
+
+        sched.discard();
+
+        try ( var files = Files.list( directory ) ) {
+            Assertions.assertEquals( 0, files.count() );
+        }
+    }
+
+    @Test
+    public void testUnreachableStagesAreSkipped() {
+        var plan = TestPlan.empty( "Unreachable" );
+        plan.stages().add( new ImmediateSuccess( 1, StageKind.START, DelayPolicy.SHORTEST_DELAY ) );
+        plan.stages().add( new ImmediateSuccess( 2, StageKind.END, DelayPolicy.SHORTEST_DELAY ) );
+        plan.link( plan.stageById( 1 ), plan.stageById( 2 ) );
+
+        for ( int i = 10; i < 1010; i++ ) {
+            plan.stages().add( new ImmediateSuccess( i, StageKind.EXECUTE_ONLY_IF_ALL_SUCCESS, DelayPolicy.SHORTEST_DELAY ) );
+        }
+
+        var dispatcher = TestCallbacks.of( this::supplyId );
+        var log = LoggerFactory.getLogger( SchedulerTest.class );
+
+        var sched = SchedulerDefault.<StageKind, Stage, TestLink>kickoff( plan, dispatcher, log );
+        var wave = sched.waves().iterator().next();
+        var skipped = wave.history().stream().filter( s -> s.status() == TaskStatus.SKIPPED ).count();
+
+        Assertions.assertTrue( sched.isComplete() );
+        Assertions.assertEquals( 1000, skipped );
+        Assertions.assertEquals( TaskStatus.SKIPPED, wave.snapshotOfStage( 500 ).status() );
+        Assertions.assertFalse( wave.hasRelatedTask( 500 ) );
+        Assertions.assertEquals( TaskResult.SUCCESS, wave.snapshotOfStage( 2 ).result() );
+    }
+
+
+    /**
+     * Callbacks recording the thread scheduling the task of each stage. They can start a copy of the wave, made with
+     * withWaveId, when a stage is activated, and hold the scheduling of a stage until another stage is scheduled.
+     */
+    private record WatchedCallbacks(TestCallbacks callbacks, long copyWaveAt, Map<Long, Long> waits,
+            Map<Long, Thread> threads, Map<Long, CountDownLatch> scheduled)
+            implements TaskScheduler<StageKind, Stage, TestLink>, Dispatcher<StageKind, Stage, TestLink> {
+
+        static WatchedCallbacks of(TestCallbacks callbacks, long copyWaveAt, Map<Long, Long> waits) {
+            return new WatchedCallbacks( callbacks, copyWaveAt, waits, new ConcurrentHashMap<>(),
+                    new ConcurrentHashMap<>() );
+        }
+
+        private CountDownLatch scheduledLatch(long stageId) {
+            return this.scheduled.computeIfAbsent( stageId, id -> new CountDownLatch( 1 ) );
+        }
+
+        @Override
+        public StageStatus<StageKind, Stage, TestLink> onDepsUpdates(TasksWave<StageKind, Stage, TestLink> wave,
+                Stage stage, List<Long> deps) {
+            var status = this.callbacks.onDepsUpdates( wave, stage, deps );
+            return stage.stageId() == this.copyWaveAt
+                    ? new StageStatus<>( wave.withWaveId( -1 ), status.canActivate() )
+                    : status;
+        }
+
+        @Override
+        public Optional<WaveStartData<StageKind, Stage>> onBackwardLinkUpdate(
+                TasksWave<StageKind, Stage, TestLink> wave, Stage stage, Collection<TestLink> incomings, long linkDep) {
+            return this.callbacks.onBackwardLinkUpdate( wave, stage, incomings, linkDep );
+        }
+
+        @Override
+        public TaskSnapshot scheduleTaskFor(TasksWave<StageKind, Stage, TestLink> wave, Stage stage,
+                Collection<TestLink> incomings, Delay delay) {
+            this.threads.put( stage.stageId(), Thread.currentThread() );
+            wave.scratchpad().put( "scheduled." + stage.stageId(), Boolean.TRUE );
+            this.scheduledLatch( stage.stageId() ).countDown();
+
+            var other = this.waits.get( stage.stageId() );
+
+            if ( other != null ) {
+                try {
+                    var done = this.scheduledLatch( other ).await( 10, TimeUnit.SECONDS );
+                    Assertions.assertTrue( done, "stage " + other + " was not scheduled in the meantime" );
+                } catch ( InterruptedException e ) {
+                    throw new RuntimeException( e );
+                }
+            }
+
+            return this.callbacks.scheduleTaskFor( wave, stage, incomings, delay );
+        }
+
+        @Override
+        public TaskScheduler<StageKind, Stage, TestLink> schedulerFor(StageKind kind) {
+            return this;
+        }
+
+        @Override
+        public TaskSnapshot takeSnapshot(TasksWave<StageKind, Stage, TestLink> wave, Stage stage, long taskId) {
+            return this.callbacks.takeSnapshot( wave, stage, taskId );
+        }
+
+    }
+
 }
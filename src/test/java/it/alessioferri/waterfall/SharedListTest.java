@@ -0,0 +1,53 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Alessio
+ */
+public class SharedListTest {
+
+    @Test
+    public void testReplaceSharesUnchangedChunks() {
+        var list = SharedList.<Integer>empty();
+        var expected = new ArrayList<Integer>();
+
+        for ( int i = 0; i < 5000; i++ ) {
+            list = list.with( i, i );
+            expected.add( i );
+        }
+
+        var replaced = list.with( 4100, -1 );
+
+        Assertions.assertEquals( expected, list );
+        Assertions.assertEquals( -1, replaced.get( 4100 ) );
+        Assertions.assertEquals( 4100, list.get( 4100 ) );
+        Assertions.assertEquals( list.subList( 0, 4100 ), replaced.subList( 0, 4100 ) );
+        Assertions.assertThrows( IndexOutOfBoundsException.class, () -> replaced.with( 5001, 0 ) );
+    }
+
+}
@@ -0,0 +1,281 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Alessio
+ */
+public class TasksWaveIndexedTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testLookupsMatchHistoryScan() {
+        assertMatchesHistoryScan( HistoryStore.onHeap() );
+    }
+
+    @Test
+    public void testColumnarLookupsMatchHistoryScan() {
+        assertMatchesHistoryScan( HistoryStore.columnar() );
+    }
+
+    @Test
+    public void testMappedLookupsMatchHistoryScan() throws IOException {
+        var store = MappedHistoryStore.create( this.directory.resolve( "wave.history" ) );
+        assertMatchesHistoryScan( store );
+
+        for ( int i = 0; i < 70000; i++ ) {
+            store.append( TaskSnapshot.succeeded( i, i % 7 ), store.size() - 1 );
+        }
+
+        Assertions.assertEquals( TaskSnapshot.succeeded( 69999, 69999 % 7 ), store.get( store.size() - 1 ) );
+        Assertions.assertEquals( store.size() - 2, store.previousAt( store.size() - 1 ) );
+
+        store.close();
+        Assertions.assertEquals( TaskSnapshot.succeeded( 69999, 69999 % 7 ), store.get( store.size() - 1 ) );
+
+        // a closed store still grows, mapping a new segment without keeping the file open
+        while ( store.size() < 100000 ) {
+            store.append( TaskSnapshot.failed( store.size(), 3 ), -1 );
+        }
+
+        Assertions.assertEquals( TaskSnapshot.failed( 99999, 3 ), store.get( 99999 ) );
+
+        var reopened = MappedHistoryStore.open( store.file() );
+        Assertions.assertEquals( store.size(), reopened.size() );
+        Assertions.assertEquals( store.get( 4321 ), reopened.get( 4321 ) );
+        Assertions.assertEquals( store.previousAt( store.size() - 1 ), reopened.previousAt( reopened.size() - 1 ) );
+
+        reopened.append( TaskSnapshot.failed( 100000, 1 ), -1 );
+        reopened.close();
+
+        var appended = MappedHistoryStore.open( store.file() );
+        Assertions.assertEquals( TaskSnapshot.failed( 100000, 1 ), appended.get( store.size() ) );
+
+        appended.discard();
+        Assertions.assertFalse( Files.exists( store.file() ) );
+
+        var garbage = Files.write( this.directory.resolve( "garbage.history" ), new byte[64] );
+        Assertions.assertThrows( IOException.class, () -> MappedHistoryStore.open( garbage ) );
+    }
+
+    private static void assertMatchesHistoryScan(HistoryStore store) {
+        var indexed = TasksWaveIndexed.<StageKind, Stage, TestLink>initWave( 0, -1, store );
+        var scanned = TasksWaveDefault.<StageKind, Stage, TestLink>initWave( 0, -1 );
+        var random = new Random( 42 );
+
+        for ( int i = 0; i < 5000; i++ ) {
+            long stageId = random.nextInt( 200 );
+            long taskId = random.nextInt( 500 );
+
+            var snapshot = switch ( random.nextInt( 4 ) ) {
+            case 0 -> TaskSnapshot.skipped( 0, stageId );
+            case 1 -> TaskSnapshot.scheduledNow( taskId, stageId );
+            case 2 -> TaskSnapshot.succeeded( taskId, stageId );
+            default -> TaskSnapshot.failed( taskId, stageId );
+            };
+
+            indexed.addSnapshot( snapshot );
+            scanned.addSnapshot( snapshot );
+        }
+
+        Assertions.assertEquals( scanned.history(), indexed.history() );
+
+        for ( long stageId = 0; stageId < 210; stageId++ ) {
+            Assertions.assertEquals( scanned.hasRelatedTask( stageId ), indexed.hasRelatedTask( stageId ) );
+            if ( stageId < 200 ) {
+                Assertions.assertEquals( scanned.snapshotOfStage( stageId ), indexed.snapshotOfStage( stageId ) );
+            }
+        }
+
+        for ( long taskId = 0; taskId < 500; taskId++ ) {
+            Assertions.assertEquals( scanned.snapshotOfTask( taskId ), indexed.snapshotOfTask( taskId ) );
+            Assertions.assertEquals( scanned.historyFor( taskId ), indexed.historyFor( taskId ) );
+        }
+
+        Assertions.assertEquals( scanned.latestSnapshotByTask(), indexed.latestSnapshotByTask() );
+
+        var latest = indexed.latestByTaskView();
+        indexed.addSnapshot( TaskSnapshot.succeeded( 1000, 1 ) );
+
+        Assertions.assertEquals( indexed.snapshotOfTask( 1000 ), latest.get( 1000L ) );
+        Assertions.assertEquals( scanned.latestSnapshotByTask().size() + 1, latest.size() );
+
+        var missing = 1000L;
+        Assertions.assertThrows( RuntimeException.class, () -> indexed.snapshotOfStage( missing ) );
+    }
+
+    @Test
+    public void testRetentionKeepsLookups() {
+        var compacted = TasksWaveIndexed.<StageKind, Stage, TestLink>initWave( 0, -1, HistoryStore.columnar(),
+                RetentionPolicy.lastPerTask( 2 ) );
+        var scanned = TasksWaveDefault.<StageKind, Stage, TestLink>initWave( 0, -1 );
+        var random = new Random( 7 );
+
+        for ( int i = 0; i < 20000; i++ ) {
+            long stageId = random.nextInt( 50 );
+            long taskId = random.nextInt( 100 );
+            var snapshot = random.nextBoolean() ? TaskSnapshot.skipped( 0, stageId )
+                    : TaskSnapshot.scheduledNow( taskId, stageId );
+
+            compacted.addSnapshot( snapshot );
+            scanned.addSnapshot( snapshot );
+        }
+
+        Assertions.assertTrue( compacted.history().size() < 2 * ( 2 * 101 + 50 ) + 64 );
+
+        compacted.history().compact();
+
+        for ( long stageId = 0; stageId < 50; stageId++ ) {
+            Assertions.assertEquals( scanned.hasRelatedTask( stageId ), compacted.hasRelatedTask( stageId ) );
+            Assertions.assertEquals( scanned.snapshotOfStage( stageId ), compacted.snapshotOfStage( stageId ) );
+        }
+
+        for ( long taskId = 0; taskId < 100; taskId++ ) {
+            var full = scanned.historyFor( taskId );
+            var kept = compacted.historyFor( taskId );
+
+            Assertions.assertEquals( scanned.snapshotOfTask( taskId ), compacted.snapshotOfTask( taskId ) );
+            Assertions.assertTrue( kept.size() >= Math.min( 2, full.size() ) );
+            Assertions.assertEquals( full.subList( full.size() - 2, full.size() ),
+                    kept.subList( kept.size() - 2, kept.size() ) );
+        }
+
+        Assertions.assertEquals( scanned.latestSnapshotByTask(), compacted.latestSnapshotByTask() );
+    }
+
+    @Test
+    public void testTypedKeysShareTheMapView() {
+        var attempts = WaveKey.of( "test.attempts", Integer.class );
+        var wave = TasksWaveIndexed.initWave( 1, 0 );
+
+        Assertions.assertNull( wave.scratch( attempts ) );
+        Assertions.assertTrue( wave.scratchpad().isEmpty() );
+
+        wave.putScratch( attempts, 3 );
+        wave.scratchpad().put( "test.untyped", "value" );
+
+        Assertions.assertEquals( 3, wave.scratch( attempts ) );
+        Assertions.assertEquals( 3, wave.scratchpad().get( "test.attempts" ) );
+        Assertions.assertEquals( 2, wave.scratchpad().size() );
+        Assertions.assertEquals( Map.of( "test.attempts", 3, "test.untyped", "value" ), wave.scratchpad() );
+
+        wave.scratchpad().put( "test.attempts", 4 );
+        Assertions.assertEquals( 4, wave.scratch( attempts ) );
+        // a value of another type is kept by name only
+        Assertions.assertEquals( 4, wave.scratchpad().put( "test.attempts", "x" ) );
+        Assertions.assertNull( wave.scratch( attempts ) );
+        Assertions.assertEquals( "x", wave.scratchpad().get( "test.attempts" ) );
+        Assertions.assertEquals( 2, wave.scratchpad().size() );
+        wave.putScratch( attempts, 4 );
+        Assertions.assertEquals( Map.of( "test.attempts", 4, "test.untyped", "value" ), wave.scratchpad() );
+        Assertions.assertThrows( IllegalArgumentException.class, () -> WaveKey.of( "test.attempts", Long.class ) );
+        Assertions.assertSame( attempts, WaveKey.of( "test.attempts", Integer.class ) );
+
+        wave.scratchpad().entrySet().removeIf( e -> e.getKey().equals( "test.attempts" ) );
+        Assertions.assertNull( wave.scratch( attempts ) );
+        Assertions.assertEquals( Map.of( "test.untyped", "value" ), wave.scratchpad() );
+        Assertions.assertNull( wave.resource( attempts ) );
+    }
+
+    @Test
+    public void testValuesStoredBeforeTheKeyStayReachable() {
+        var wave = TasksWaveIndexed.initWave( 1, 0 );
+        wave.scratchpad().put( "test.late", 7 );
+
+        var late = WaveKey.of( "test.late", Integer.class );
+
+        Assertions.assertEquals( 7, wave.scratch( late ) );
+        Assertions.assertEquals( 7, wave.scratchpad().get( "test.late" ) );
+        Assertions.assertTrue( wave.scratchpad().containsKey( "test.late" ) );
+
+        // the next write moves the value to the slot of the key
+        wave.putScratch( late, 8 );
+        Assertions.assertEquals( Map.of( "test.late", 8 ), wave.scratchpad() );
+
+        Assertions.assertEquals( 8, wave.scratchpad().remove( "test.late" ) );
+        Assertions.assertTrue( wave.scratchpad().isEmpty() );
+    }
+
+    @Test
+    public void testFrontierRemovesWhileVisiting() {
+        var frontier = new CursorFrontier();
+
+        for ( long id = 0; id < 10; id++ ) {
+            frontier.addCursor( id );
+        }
+
+        Assertions.assertFalse( frontier.addCursor( 3 ) );
+
+        // odd cursors are consumed and replaced by a cursor 100 higher
+        frontier.removeWhere( cursor -> {
+            if ( cursor % 2 == 1 && cursor < 100 ) {
+                frontier.addCursor( cursor + 100 );
+                return true;
+            }
+            return false;
+        } );
+
+        Assertions.assertEquals( List.of( 0L, 2L, 4L, 6L, 8L, 101L, 103L, 105L, 107L, 109L ), frontier );
+        Assertions.assertTrue( frontier.containsCursor( 103 ) );
+        Assertions.assertFalse( frontier.containsCursor( 3 ) );
+        Assertions.assertTrue( frontier.addCursor( 3 ) );
+
+        frontier.remove( 0 );
+        Assertions.assertEquals( 2L, frontier.get( 0 ) );
+        Assertions.assertFalse( frontier.contains( 0L ) );
+
+        // as a List the frontier behaves like the ArrayList of the other waves
+        var copy = new ArrayList<>( frontier );
+        frontier.add( 4L );
+        copy.add( 4L );
+        frontier.add( 1, 50L );
+        copy.add( 1, 50L );
+        frontier.set( 0, 60L );
+        copy.set( 0, 60L );
+        frontier.sort( null );
+        copy.sort( null );
+
+        Assertions.assertEquals( copy, frontier );
+        Assertions.assertFalse( frontier.containsCursor( 2 ) );
+        Assertions.assertTrue( frontier.containsCursor( 60 ) );
+
+        frontier.remove( Long.valueOf( 4L ) );
+        Assertions.assertTrue( frontier.containsCursor( 4 ) );
+        frontier.remove( Long.valueOf( 4L ) );
+        Assertions.assertFalse( frontier.containsCursor( 4 ) );
+    }
+
+}
@@ -0,0 +1,60 @@
+package it.alessioferri.waterfall;
+
+/*-
+ * #%L
+ * Waterfall
+ * %%
+ * Copyright (C) 2023 Alessio Ferri
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ *
+ * @author Alessio
+ */
+public record TestComposer(Map<Long, TestPlan> subPlans) implements PlanComposer<StageKind, Stage, TestLink> {
+
+    public static TestComposer empty() {
+        return new TestComposer( new HashMap<>() );
+    }
+
+    @Override
+    public Optional<TestPlan> subPlanOf(Stage stage) {
+        return Optional.ofNullable( subPlans.get( stage.stageId() ) );
+    }
+
+    @Override
+    public Stage remap(Stage stage, long stageId) {
+        if ( stage instanceof ImmediateFail ) {
+            return new ImmediateFail( stageId, stage.kind(), stage.delayPolicy() );
+        } else if ( stage instanceof DeferredSuccess ) {
+            return new DeferredSuccess( stageId, stage.kind(), stage.delayPolicy() );
+        } else if ( stage instanceof DeferredFail ) {
+            return new DeferredFail( stageId, stage.kind(), stage.delayPolicy() );
+        }
+
+        return new ImmediateSuccess( stageId, stage.kind(), stage.delayPolicy() );
+    }
+
+    @Override
+    public TestLink remap(TestLink link, long from, long to) {
+        return new TestLink( from, to, link.delay() );
+    }
+
+}